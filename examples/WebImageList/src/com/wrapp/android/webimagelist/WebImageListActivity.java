@@ -85,6 +85,9 @@ public class WebImageListActivity extends ListActivity implements WebImageView.L
     // Create a list adapter and attach it to the ListView
     WebImageListAdapter listAdapter = new WebImageListAdapter(this);
     setListAdapter(listAdapter);
+
+    // Don't waste time on images for rows which fly by while the list is being flung
+    getListView().setOnScrollListener(new WebImage.PauseOnScrollListener());
   }
 
   @Override
@@ -128,6 +131,7 @@ public class WebImageListActivity extends ListActivity implements WebImageView.L
       case R.id.MainMenuClearCachesItem:
         WebImage.cancelAllRequests();
         WebImage.clearOldCacheFiles(this, 0);
+        WebImage.clearMemoryCache();
         Toast toast = Toast.makeText(this, "Caches cleared", Toast.LENGTH_SHORT);
         toast.show();
         refresh();
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012 Bohemian Wrappsody AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.wrapp.android.webimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the bitmap APIs which bitmap reuse depends on. These were added long after the API level
+ * which WebImage is built against, so they are looked up by reflection. On devices which don't have
+ * them, all methods in this class do nothing.
+ */
+class BitmapCompat {
+  static final int SDK_HONEYCOMB = 11;
+  static final int SDK_KITKAT = 19;
+
+  private static final Field inMutableField = getOptionsField("inMutable");
+  private static final Field inBitmapField = getOptionsField("inBitmap");
+  private static final Method getAllocationByteCountMethod = getBitmapMethod("getAllocationByteCount");
+
+  /**
+   * Check if bitmaps can be decoded into the memory of other bitmaps on this device.
+   * @return True if {@link #setInBitmap(BitmapFactory.Options, Bitmap)} works
+   */
+  static boolean isBitmapReuseSupported() {
+    return inMutableField != null && inBitmapField != null;
+  }
+
+  static void setInMutable(BitmapFactory.Options options, boolean value) {
+    if(inMutableField != null) {
+      try {
+        inMutableField.setBoolean(options, value);
+      }
+      catch(IllegalAccessException e) {
+        LogWrapper.logException(e);
+      }
+    }
+  }
+
+  static void setInBitmap(BitmapFactory.Options options, Bitmap bitmap) {
+    if(inBitmapField != null) {
+      try {
+        inBitmapField.set(options, bitmap);
+      }
+      catch(IllegalAccessException e) {
+        LogWrapper.logException(e);
+      }
+    }
+  }
+
+  /**
+   * Get the size of the memory allocated for a bitmap, which may be larger than its pixel data if it
+   * has been reused for a smaller image.
+   * @param bitmap Bitmap
+   * @return Size in bytes
+   */
+  static long getAllocationByteCount(Bitmap bitmap) {
+    if(getAllocationByteCountMethod != null) {
+      try {
+        return (Integer)getAllocationByteCountMethod.invoke(bitmap);
+      }
+      catch(Exception e) {
+        LogWrapper.logException(e);
+      }
+    }
+    return (long)bitmap.getRowBytes() * bitmap.getHeight();
+  }
+
+  private static Field getOptionsField(String name) {
+    try {
+      return BitmapFactory.Options.class.getField(name);
+    }
+    catch(NoSuchFieldException e) {
+      return null;
+    }
+  }
+
+  private static Method getBitmapMethod(String name) {
+    try {
+      return Bitmap.class.getMethod(name);
+    }
+    catch(NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
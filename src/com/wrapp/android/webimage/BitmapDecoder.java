@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2012 Bohemian Wrappsody AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.wrapp.android.webimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.*;
+
+/** Helper methods for decoding images from the file cache. */
+class BitmapDecoder {
+  private static final int DOWNSAMPLED_JPEG_QUALITY = 90;
+  private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+  // JPEG files may have large EXIF blocks, with thumbnails, before the image's dimensions
+  private static final int MAX_STREAM_HEADER_SIZE = 128 * 1024;
+
+  /**
+   * Decode an image file for a request. If the request has a target size and the caller did not ask
+   * for a particular sample size, the image is downsampled by the largest power of two which still
+   * leaves it at least as large as the target size.
+   * @param file Image file
+   * @param request Request to decode the image for
+   * @return Decoded bitmap, or null if the image could not be decoded
+   * @throws IOException If the file could not be read
+   */
+  public static Bitmap decodeFile(File file, ImageRequest request) throws IOException {
+    final BitmapFactory.Options options = getDecodeOptions(request);
+    if(request.targetWidth <= 0 || request.targetHeight <= 0 || (options != null && options.inSampleSize > 1)) {
+      return decodeReusingBitmap(file, options, null);
+    }
+    else if(!ImageCache.getSaveDownsampledImages()) {
+      return decodeSampledFile(file, options, request.targetWidth, request.targetHeight);
+    }
+
+    // Downsampled images are saved for a range of sizes, so that views which are almost the same
+    // size can share them. Each range is large enough to cover any target size inside of it.
+    final int bucketWidth = ImageCache.getSizeBucket(request.targetWidth);
+    final int bucketHeight = ImageCache.getSizeBucket(request.targetHeight);
+    final File downsampledFile = ImageCache.getDownsampledFile(request.context, request.imageKey, bucketWidth, bucketHeight);
+    if(downsampledFile.exists()) {
+      LogWrapper.logMessage("Loading downsampled version of " + request.imageUrl);
+      final Bitmap bitmap = decodeSampledFile(downsampledFile, options, request.targetWidth, request.targetHeight);
+      if(bitmap != null) {
+        return bitmap;
+      }
+      // The saved file is corrupt, so make a new one from the original image
+    }
+
+    final BitmapFactory.Options boundsOptions = decodeBounds(file);
+    final int sampleSize = calculateSampleSize(boundsOptions.outWidth, boundsOptions.outHeight, bucketWidth, bucketHeight);
+    if(sampleSize <= 1) {
+      // Saving a copy would not make the image any smaller
+      return decodeSampledFile(file, options, request.targetWidth, request.targetHeight);
+    }
+
+    final Bitmap bitmap = decodeReusingBitmap(file, copyOptions(options, sampleSize), boundsOptions);
+    if(bitmap != null) {
+      saveDownsampledImage(bitmap, boundsOptions.outMimeType, downsampledFile);
+    }
+    return bitmap;
+  }
+
+  /**
+   * Decode an image from a stream for a request, downsampling it to the request's target size. This is
+   * used to decode images while they are being downloaded, so the stream can only be read once. To
+   * find the image's size, the start of the stream is buffered and read twice. Images whose headers
+   * are too large for this can't be downsampled here, and null is returned so that the caller can
+   * decode the image from the file cache instead.
+   * @param inputStream Stream to decode, which is not closed
+   * @param request Request to decode the image for
+   * @return Decoded bitmap, or null if the image could not be decoded
+   * @throws IOException If the stream could not be read
+   */
+  static Bitmap decodeStream(InputStream inputStream, ImageRequest request) throws IOException {
+    BitmapFactory.Options options = getDecodeOptions(request);
+    if(request.targetWidth > 0 && request.targetHeight > 0 && (options == null || options.inSampleSize <= 1)) {
+      final BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream, STREAM_BUFFER_SIZE);
+      bufferedInputStream.mark(MAX_STREAM_HEADER_SIZE);
+      final BitmapFactory.Options boundsOptions = new BitmapFactory.Options();
+      boundsOptions.inJustDecodeBounds = true;
+      BitmapFactory.decodeStream(bufferedInputStream, null, boundsOptions);
+      try {
+        bufferedInputStream.reset();
+      }
+      catch(IOException e) {
+        LogWrapper.logMessage("Image header for " + request.imageUrl + " is too large to decode while downloading");
+        return null;
+      }
+
+      if(boundsOptions.outWidth > 0 && boundsOptions.outHeight > 0) {
+        final int sampleSize = calculateSampleSize(boundsOptions.outWidth, boundsOptions.outHeight,
+          request.targetWidth, request.targetHeight);
+        options = copyOptions(options, sampleSize);
+      }
+      inputStream = bufferedInputStream;
+    }
+
+    // Bitmaps which are decoded here must be mutable as well, so that they can be reused
+    if(BitmapPool.isEnabled() && (options == null || !options.inPurgeable)) {
+      options = copyOptions(options, options != null ? Math.max(options.inSampleSize, 1) : 1);
+      BitmapCompat.setInMutable(options, true);
+    }
+    return BitmapFactory.decodeStream(inputStream, null, options);
+  }
+
+  /**
+   * Find the largest power of two which an image can be downsampled by and still cover the target size.
+   * @param width Image width
+   * @param height Image height
+   * @param targetWidth Target width
+   * @param targetHeight Target height
+   * @return Sample size, 1 if the image should not be downsampled
+   */
+  public static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight) {
+    int sampleSize = 1;
+    while(width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  private static Bitmap decodeSampledFile(File file, BitmapFactory.Options options, int targetWidth, int targetHeight) throws IOException {
+    final BitmapFactory.Options boundsOptions = decodeBounds(file);
+    if(boundsOptions.outWidth > 0 && boundsOptions.outHeight > 0) {
+      final int sampleSize = calculateSampleSize(boundsOptions.outWidth, boundsOptions.outHeight, targetWidth, targetHeight);
+      if(sampleSize > 1) {
+        // Don't modify the caller's options, as they are often shared between requests
+        return decodeReusingBitmap(file, copyOptions(options, sampleSize), boundsOptions);
+      }
+    }
+    return decodeReusingBitmap(file, options, boundsOptions);
+  }
+
+  /**
+   * Decode an image, reusing the memory of a bitmap from the {@link BitmapPool} if there is one of the
+   * right size. Bitmaps decoded here are always mutable, so that they can be reused in turn.
+   * @param file Image file
+   * @param options Decoding options, which are not modified
+   * @param boundsOptions Result of decoding the image bounds, or null if not yet known
+   * @return Decoded bitmap, or null if the image could not be decoded
+   * @throws IOException If the file could not be read
+   */
+  private static Bitmap decodeReusingBitmap(File file, BitmapFactory.Options options, BitmapFactory.Options boundsOptions) throws IOException {
+    // Purgeable bitmaps can't be decoded into existing bitmaps
+    if(!BitmapPool.isEnabled() || (options != null && options.inPurgeable)) {
+      return decodeFile(file, options);
+    }
+
+    final int sampleSize = options != null ? Math.max(options.inSampleSize, 1) : 1;
+    final BitmapFactory.Options decodeOptions = copyOptions(options, sampleSize);
+    BitmapCompat.setInMutable(decodeOptions, true);
+    Bitmap reusedBitmap = null;
+    if(!BitmapPool.isEmpty()) {
+      if(boundsOptions == null) {
+        boundsOptions = decodeBounds(file);
+      }
+      final Bitmap.Config config = decodeOptions.inPreferredConfig != null ? decodeOptions.inPreferredConfig : Bitmap.Config.ARGB_8888;
+      reusedBitmap = BitmapPool.get((boundsOptions.outWidth + sampleSize - 1) / sampleSize,
+        (boundsOptions.outHeight + sampleSize - 1) / sampleSize, config, sampleSize);
+    }
+
+    if(reusedBitmap != null) {
+      BitmapCompat.setInBitmap(decodeOptions, reusedBitmap);
+      try {
+        final Bitmap bitmap = decodeFile(file, decodeOptions);
+        if(bitmap != null) {
+          return bitmap;
+        }
+      }
+      catch(IllegalArgumentException e) {
+        // The pooled bitmap turned out not to be compatible with this image after all
+        LogWrapper.logException(e);
+      }
+      BitmapCompat.setInBitmap(decodeOptions, null);
+    }
+    return decodeFile(file, decodeOptions);
+  }
+
+  private static BitmapFactory.Options decodeBounds(File file) throws IOException {
+    final BitmapFactory.Options boundsOptions = new BitmapFactory.Options();
+    boundsOptions.inJustDecodeBounds = true;
+    decodeFile(file, boundsOptions);
+    return boundsOptions;
+  }
+
+  private static Bitmap decodeFile(File file, BitmapFactory.Options options) throws IOException {
+    FileInputStream inputStream = null;
+    try {
+      inputStream = new FileInputStream(file);
+      return BitmapFactory.decodeFileDescriptor(inputStream.getFD(), null, options);
+    }
+    finally {
+      if(inputStream != null) {
+        try {
+          inputStream.close();
+        }
+        catch(IOException e) {
+          LogWrapper.logException(e);
+        }
+      }
+    }
+  }
+
+  private static void saveDownsampledImage(Bitmap bitmap, String mimeType, File downsampledFile) {
+    // Keep transparency for images which have it, otherwise JPEG gives much smaller files
+    final boolean usePng = bitmap.hasAlpha() || "image/png".equals(mimeType);
+    File tempFile = null;
+    OutputStream outputStream = null;
+    try {
+      ImageCache.createParentDirectory(downsampledFile);
+      tempFile = File.createTempFile(ImageCache.TEMP_FILE_PREFIX, "tmp", downsampledFile.getParentFile());
+      outputStream = new BufferedOutputStream(new FileOutputStream(tempFile));
+      if(bitmap.compress(usePng ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, DOWNSAMPLED_JPEG_QUALITY, outputStream)) {
+        outputStream.close();
+        outputStream = null;
+        if(tempFile.renameTo(downsampledFile)) {
+          LogWrapper.logMessage("Saved downsampled image " + downsampledFile.getName());
+          tempFile = null;
+        }
+      }
+    }
+    catch(IOException e) {
+      LogWrapper.logException(e);
+    }
+    finally {
+      if(outputStream != null) {
+        try {
+          outputStream.close();
+        }
+        catch(IOException e) {
+          LogWrapper.logException(e);
+        }
+      }
+      if(tempFile != null) {
+        tempFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Get the options to decode the image for a request with. The caller's options are often shared
+   * between requests, which may be decoded on several threads at once, so any temp storage buffer in
+   * them is left out and each decode gets a buffer of its own.
+   * @param request Request
+   * @return Options, or null
+   */
+  private static BitmapFactory.Options getDecodeOptions(ImageRequest request) {
+    final BitmapFactory.Options options = request.loadOptions;
+    if(options != null && options.inTempStorage != null) {
+      return copyOptions(options, options.inSampleSize);
+    }
+    return options;
+  }
+
+  private static BitmapFactory.Options copyOptions(BitmapFactory.Options options, int sampleSize) {
+    final BitmapFactory.Options result = new BitmapFactory.Options();
+    if(options != null) {
+      result.inPreferredConfig = options.inPreferredConfig;
+      result.inDither = options.inDither;
+      result.inPurgeable = options.inPurgeable;
+      result.inInputShareable = options.inInputShareable;
+    }
+    result.inSampleSize = sampleSize;
+    return result;
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2012 Bohemian Wrappsody AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.wrapp.android.webimage;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of bitmaps which are no longer displayed and whose memory can be reused for decoding other
+ * images with {@link android.graphics.BitmapFactory.Options#inBitmap}, which is available on API
+ * Level 11 and above. On older devices, all methods in this class do nothing.
+ *
+ * A bitmap may only be reused when nothing else is using it, so bitmaps are reference counted. The
+ * memory cache, each WebImageView displaying a bitmap, and each bitmap on its way to a view all hold
+ * a reference. When the last reference is released, the bitmap is added to the pool. Bitmaps which
+ * have been handed to other kinds of listeners are never pooled, since there is no way to know when
+ * those listeners are finished with them.
+ */
+class BitmapPool {
+  private static final int DEFAULT_HEAP_FRACTION = 16;
+  private static final boolean IS_SUPPORTED = Build.VERSION.SDK_INT >= BitmapCompat.SDK_HONEYCOMB && BitmapCompat.isBitmapReuseSupported();
+
+  // Weak keys so that bitmaps held by views which are never released (for instance when the activity
+  // is destroyed) are simply garbage collected.
+  private static final WeakHashMap<Bitmap, int[]> referenceCounts = new WeakHashMap<Bitmap, int[]>();
+  private static final WeakHashMap<Bitmap, Boolean> unmanagedBitmaps = new WeakHashMap<Bitmap, Boolean>();
+  private static final LinkedList<Bitmap> pooledBitmaps = new LinkedList<Bitmap>();
+  private static long maxSizeInBytes = Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION;
+  private static long currentSizeInBytes = 0;
+
+  public static boolean isEnabled() {
+    return IS_SUPPORTED && maxSizeInBytes > 0;
+  }
+
+  public static void retain(Bitmap bitmap) {
+    if(!IS_SUPPORTED || bitmap == null) {
+      return;
+    }
+
+    synchronized(pooledBitmaps) {
+      final int[] referenceCount = referenceCounts.get(bitmap);
+      if(referenceCount == null) {
+        referenceCounts.put(bitmap, new int[] {1});
+      }
+      else {
+        referenceCount[0]++;
+      }
+    }
+  }
+
+  public static void release(Bitmap bitmap) {
+    if(!IS_SUPPORTED || bitmap == null) {
+      return;
+    }
+
+    synchronized(pooledBitmaps) {
+      final int[] referenceCount = referenceCounts.get(bitmap);
+      if(referenceCount == null || --referenceCount[0] > 0) {
+        return;
+      }
+
+      referenceCounts.remove(bitmap);
+      if(unmanagedBitmaps.remove(bitmap) != null) {
+        return;
+      }
+      if(bitmap.isMutable() && !bitmap.isRecycled() && maxSizeInBytes > 0) {
+        pooledBitmaps.addLast(bitmap);
+        currentSizeInBytes += getBitmapSize(bitmap);
+        trimToSize(maxSizeInBytes);
+      }
+    }
+  }
+
+  /**
+   * Called when a bitmap is given to a listener. Only bitmaps which are displayed by WebImageView
+   * itself are tracked well enough to be reused; subclasses may do anything with the bitmap.
+   * Prefetching does not keep the bitmap at all, and update checks pass it on to another listener.
+   * @param listener Listener which received the bitmap
+   * @param bitmap Bitmap
+   */
+  public static void onBitmapDelivered(ImageRequest.Listener listener, Bitmap bitmap) {
+    if(!IS_SUPPORTED || bitmap == null || listener == null || listener.getClass() == WebImageView.class ||
+      listener instanceof ImageLoader.PrefetchListener || listener instanceof ImageLoader.UpdateCheckListener) {
+      return;
+    }
+
+    synchronized(pooledBitmaps) {
+      unmanagedBitmaps.put(bitmap, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Take a bitmap from the pool which can be decoded into.
+   * @param width Width of the decoded image
+   * @param height Height of the decoded image
+   * @param config Bitmap config of the decoded image
+   * @param sampleSize Sample size the image will be decoded with
+   * @return Bitmap to pass as inBitmap, or null if there is none
+   */
+  public static Bitmap get(int width, int height, Bitmap.Config config, int sampleSize) {
+    // Before KitKat, the decoded image must have exactly the same size as the reused bitmap
+    final boolean isKitKat = Build.VERSION.SDK_INT >= BitmapCompat.SDK_KITKAT;
+    if(!isEnabled() || width <= 0 || height <= 0 || (sampleSize > 1 && !isKitKat)) {
+      return null;
+    }
+
+    synchronized(pooledBitmaps) {
+      final long requiredSize = (long)width * height * getBytesPerPixel(config);
+      final Iterator<Bitmap> iterator = pooledBitmaps.iterator();
+      while(iterator.hasNext()) {
+        final Bitmap bitmap = iterator.next();
+        final boolean canReuse;
+        if(isKitKat) {
+          canReuse = BitmapCompat.getAllocationByteCount(bitmap) >= requiredSize;
+        }
+        else {
+          canReuse = bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config;
+        }
+        if(canReuse) {
+          iterator.remove();
+          currentSizeInBytes -= getBitmapSize(bitmap);
+          return bitmap;
+        }
+      }
+    }
+    return null;
+  }
+
+  public static boolean isEmpty() {
+    synchronized(pooledBitmaps) {
+      return pooledBitmaps.isEmpty();
+    }
+  }
+
+  public static void clear() {
+    synchronized(pooledBitmaps) {
+      pooledBitmaps.clear();
+      currentSizeInBytes = 0;
+    }
+  }
+
+  public static void setMaxSizeInBytes(long value) {
+    synchronized(pooledBitmaps) {
+      maxSizeInBytes = value;
+      trimToSize(maxSizeInBytes);
+    }
+  }
+
+  private static void trimToSize(long sizeInBytes) {
+    while(currentSizeInBytes > sizeInBytes && !pooledBitmaps.isEmpty()) {
+      final Bitmap bitmap = pooledBitmaps.removeFirst();
+      currentSizeInBytes -= getBitmapSize(bitmap);
+    }
+  }
+
+  private static int getBytesPerPixel(Bitmap.Config config) {
+    if(config == Bitmap.Config.ALPHA_8) {
+      return 1;
+    }
+    else if(config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+      return 2;
+    }
+    return 4;
+  }
+
+  private static long getBitmapSize(Bitmap bitmap) {
+    return BitmapCompat.getAllocationByteCount(bitmap);
+  }
+}
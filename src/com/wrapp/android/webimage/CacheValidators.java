@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2012 Bohemian Wrappsody AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.wrapp.android.webimage;
+
+/**
+ * HTTP caching information saved for an image in the file cache. This is used to check if the image
+ * has changed on the server without having to download it again.
+ */
+class CacheValidators {
+  // Values of the ETag and Last-Modified headers, exactly as sent by the server. Either may be null.
+  public String eTag;
+  public String lastModified;
+  // Time until which the image can be used without asking the server, from Cache-Control's max-age
+  // or the Expires header. Zero if the image must always be revalidated.
+  public long expirationTimeInMs;
+}
@@ -23,8 +23,8 @@ package com.wrapp.android.webimage;
 
 import android.graphics.Bitmap;
 
-import java.io.File;
 import java.util.Date;
+import java.util.List;
 
 public class CheckTimestampThread extends TaskQueueThread {
   static CheckTimestampThread staticInstance;
@@ -41,26 +41,76 @@ public class CheckTimestampThread extends TaskQueueThread {
     setPriority(Thread.MIN_PRIORITY);
   }
 
+  @Override
+  protected boolean isAcceptingRequests() {
+    return !ImageLoader.isPaused();
+  }
+
+  @Override
+  public void addTask(ImageRequest request) {
+    // Checking for changes is never as urgent as loading images which are not cached yet
+    super.addTask(request, ImageRequest.Priority.REVALIDATE);
+  }
+
   @Override
   protected Bitmap processRequest(ImageRequest request) {
-    LogWrapper.logMessage("Requesting timestamp for " + request.imageUrl);
-    File cacheFile = new File(ImageCache.getCacheDirectory(request.context), request.imageKey);
-    Date expirationDate = ImageDownloader.getServerTimestamp(request.imageUrl);
+    // Another request may have had the image checked while this one was waiting in the queue
+    if(!ImageCache.isRecheckNeeded(request.context, request.imageKey)) {
+      return null;
+    }
+
+    CacheValidators validators = ImageCache.getValidators(request.context, request.imageKey);
     Date now = new Date();
-    if(expirationDate.after(now)) {
-      LogWrapper.logMessage("Cached version of " + request.imageUrl.toString() + " is still current, updating timestamp");
-      if(!cacheFile.setLastModified(now.getTime())) {
-        LogWrapper.logMessage("Can't update timestamp!");
-        // TODO: It seems that in some cases this call will always return false and refuse to update the timestamp
-        // For more info, see: http://code.google.com/p/android/issues/detail?id=18624
-        // This occurs on other devices, including my Galaxy Nexus. Not sure how many others have this bug.
+    if(validators != null && validators.expirationTimeInMs > now.getTime()) {
+      // The server has said that this image can be used without checking until then
+      LogWrapper.logMessage("Cached version of " + request.imageUrl.toString() + " has not expired yet, updating timestamp");
+      ImageCache.markImageValidated(request.context, request.imageKey, now.getTime());
+      return null;
+    }
+
+    // Revalidating writes to the same cache file as downloading, so the two must never run at the same
+    // time. If the image is being downloaded already, this request gets the new version when it's done.
+    final DownloadThreadPool downloadThreadPool = DownloadThreadPool.getInstance();
+    final DownloadThreadPool.ActiveDownload download = downloadThreadPool.beginRevalidation(request);
+    if(download == null) {
+      LogWrapper.logMessage("Download already in progress for " + request.imageUrl + ", not revalidating");
+      return null;
+    }
+
+    boolean hasChanged = false;
+    try {
+      LogWrapper.logMessage("Revalidating cached version of " + request.imageUrl);
+      switch(ImageDownloader.revalidateImage(request.context, request.imageKey, request.imageUrl, validators, download)) {
+        case ImageDownloader.RESULT_NOT_MODIFIED:
+          // The new validation time was saved together with the validators from the response
+          LogWrapper.logMessage("Cached version of " + request.imageUrl.toString() + " is still current");
+          break;
+        case ImageDownloader.RESULT_DOWNLOADED:
+          // The new version has already been saved to the file cache, so just reload it from there
+          LogWrapper.logMessage("Cached version of " + request.imageUrl.toString() + " has changed, reloading image");
+          MemoryCache.remove(request.imageKey);
+          hasChanged = true;
+          break;
+        default:
+          // Better to show an old image than no image at all, so keep the cached version and try again later
+          LogWrapper.logMessage("Could not revalidate " + request.imageUrl.toString() + ", keeping cached version");
+          break;
       }
     }
-    else {
-      LogWrapper.logMessage("Cached version of " + request.imageUrl.toString() + " found, but has expired.");
-      cacheFile.delete();
-      request.forceDownload = true;
-      DownloadThreadPool.getInstance().addTask(request);
+    finally {
+      final List<ImageRequest> waitingRequests = downloadThreadPool.finishDownload(download);
+      for(ImageRequest waitingRequest : waitingRequests) {
+        if(waitingRequest == request) {
+          if(hasChanged) {
+            FileLoaderThreadPool.getInstance().addTask(request);
+          }
+        }
+        else if(waitingRequest.listener != null && !waitingRequest.downloadOnly) {
+          // Requests which wanted to download the image while it was being revalidated get whatever is
+          // in the cache now, changed or not
+          FileLoaderThreadPool.getInstance().addTask(waitingRequest);
+        }
+      }
     }
 
     return null;
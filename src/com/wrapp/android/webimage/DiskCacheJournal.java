@@ -0,0 +1,557 @@
+/*
+ * Copyright (c) 2012 Bohemian Wrappsody AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.wrapp.android.webimage;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Index of the images in the file cache, which is kept in memory and persisted in an append-only
+ * journal file in the cache directory. Each line of the journal records one change to the index:
+ *
+ * <pre>
+ * PUT   key size lastAccessTime lastValidatedTime expirationTime eTag lastModified
+ * READ  key lastAccessTime
+ * VALID key lastValidatedTime
+ * DEL   key
+ * </pre>
+ *
+ * Fields are separated by tabs, since HTTP dates contain spaces. When the journal is opened, it is
+ * replayed to rebuild the index, and every so often it is compacted by rewriting it with a single
+ * PUT line per image. Entries are kept in least recently used order, so that the oldest images can
+ * be evicted without looking at the files themselves when the cache grows past its size limit.
+ *
+ * Timestamps are kept here rather than in the files' modification times, because File.setLastModified()
+ * does not work on many devices. See http://code.google.com/p/android/issues/detail?id=18624
+ */
+class DiskCacheJournal {
+  static final String JOURNAL_FILE_NAME = "journal";
+  private static final String JOURNAL_TEMP_FILE_NAME = "journal.tmp";
+  private static final String MAGIC = "webimage.journal";
+  private static final String VERSION = "1";
+  private static final String RECORD_PUT = "PUT";
+  private static final String RECORD_READ = "READ";
+  private static final String RECORD_VALID = "VALID";
+  private static final String RECORD_DELETE = "DEL";
+  private static final char FIELD_SEPARATOR = '\t';
+  private static final int MIN_REDUNDANT_RECORDS_FOR_COMPACTION = 2000;
+
+  private final File directory;
+  private final File journalFile;
+  // Kept in insertion order, and entries are moved to the end explicitly when their image is used, so
+  // that looking up an image's metadata doesn't count as using it
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f);
+  private Writer journalWriter;
+  private long maxSizeInBytes;
+  private long currentSizeInBytes = 0;
+  private int redundantRecordCount = 0;
+
+  private static final class Entry {
+    long sizeInBytes;
+    long lastAccessTimeInMs;
+    long lastValidatedTimeInMs;
+    CacheValidators validators;
+  }
+
+  private DiskCacheJournal(File directory, long maxSizeInBytes) {
+    this.directory = directory;
+    this.journalFile = new File(directory, JOURNAL_FILE_NAME);
+    this.maxSizeInBytes = maxSizeInBytes;
+  }
+
+  /**
+   * Open the journal for a cache directory. If the directory has no journal yet, it is scanned once
+   * to build one from the files which are already there.
+   * @param directory Cache directory
+   * @param maxSizeInBytes Maximum total size of the cached images
+   * @return Journal
+   */
+  static DiskCacheJournal open(File directory, long maxSizeInBytes) {
+    final DiskCacheJournal journal = new DiskCacheJournal(directory, maxSizeInBytes);
+    synchronized(journal) {
+      boolean isValid = false;
+      if(journal.journalFile.exists()) {
+        try {
+          journal.readJournal();
+          isValid = true;
+        }
+        catch(IOException e) {
+          LogWrapper.logException(e);
+          journal.entries.clear();
+          journal.currentSizeInBytes = 0;
+        }
+      }
+
+      if(!isValid) {
+        LogWrapper.logMessage("Building cache journal for " + directory.toString());
+        journal.scanDirectory();
+        journal.removeFlatDownsampledImages();
+        journal.compact();
+      }
+      else if(journal.isCompactionNeeded()) {
+        journal.compact();
+      }
+      else {
+        journal.openWriter();
+      }
+      journal.trimToSize(maxSizeInBytes);
+    }
+    return journal;
+  }
+
+  File getDirectory() {
+    return directory;
+  }
+
+  synchronized boolean contains(String key) {
+    return entries.containsKey(key);
+  }
+
+  synchronized CacheValidators getValidators(String key) {
+    final Entry entry = entries.get(key);
+    return entry != null ? entry.validators : null;
+  }
+
+  /**
+   * Get the time when a cached image was downloaded, or last confirmed to be current by the server.
+   * @param key Image key
+   * @return Time in milliseconds, or 0 if the image is not cached
+   */
+  synchronized long getLastValidatedTime(String key) {
+    final Entry entry = entries.get(key);
+    return entry != null ? entry.lastValidatedTimeInMs : 0;
+  }
+
+  synchronized long getSizeInBytes() {
+    return currentSizeInBytes;
+  }
+
+  /**
+   * Add an image which has been saved to the cache directory, or update the validators of an image
+   * which has been downloaded again or revalidated. This may evict other images from the cache.
+   * @param key Image key
+   * @param sizeInBytes Size of the image file
+   * @param validators Validators for the image, or null
+   */
+  synchronized void put(String key, long sizeInBytes, CacheValidators validators) {
+    final long now = System.currentTimeMillis();
+    Entry entry = entries.get(key);
+    if(entry == null) {
+      entry = new Entry();
+      entries.put(key, entry);
+    }
+    else {
+      moveToEnd(key, entry);
+      currentSizeInBytes -= entry.sizeInBytes;
+      redundantRecordCount++;
+    }
+    entry.sizeInBytes = sizeInBytes;
+    entry.lastAccessTimeInMs = now;
+    entry.lastValidatedTimeInMs = now;
+    entry.validators = validators;
+    currentSizeInBytes += sizeInBytes;
+
+    writeRecord(getPutRecord(key, entry), true);
+    trimToSize(maxSizeInBytes);
+  }
+
+  /**
+   * Record that a cached image has been read, which moves it to the end of the eviction queue.
+   * @param key Image key
+   */
+  synchronized void recordAccess(String key) {
+    final Entry entry = entries.get(key);
+    if(entry != null) {
+      moveToEnd(key, entry);
+      entry.lastAccessTimeInMs = System.currentTimeMillis();
+      redundantRecordCount++;
+      // Losing a few of these on a crash does no harm, so don't bother flushing them right away
+      writeRecord(RECORD_READ + FIELD_SEPARATOR + key + FIELD_SEPARATOR + entry.lastAccessTimeInMs, false);
+    }
+  }
+
+  /**
+   * Record that the server has confirmed a cached image is still current.
+   * @param key Image key
+   * @param timeInMs Time of confirmation
+   */
+  synchronized void recordValidation(String key, long timeInMs) {
+    final Entry entry = entries.get(key);
+    if(entry != null) {
+      entry.lastValidatedTimeInMs = timeInMs;
+      redundantRecordCount++;
+      writeRecord(RECORD_VALID + FIELD_SEPARATOR + key + FIELD_SEPARATOR + timeInMs, true);
+    }
+  }
+
+  /**
+   * Remove an image from the journal. The image file itself must be deleted by the caller.
+   * @param key Image key
+   */
+  synchronized void remove(String key) {
+    final Entry entry = entries.remove(key);
+    if(entry != null) {
+      currentSizeInBytes -= entry.sizeInBytes;
+      redundantRecordCount += 2;
+      writeRecord(RECORD_DELETE + FIELD_SEPARATOR + key, true);
+    }
+  }
+
+  /**
+   * Delete all images which have not been used since a given time.
+   * @param timeInMs Oldest access time to keep
+   */
+  synchronized void removeImagesAccessedBefore(long timeInMs) {
+    final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while(iterator.hasNext()) {
+      final Map.Entry<String, Entry> entry = iterator.next();
+      if(entry.getValue().lastAccessTimeInMs < timeInMs) {
+        LogWrapper.logMessage("Deleting image '" + entry.getKey() + "' from file cache");
+        iterator.remove();
+        deleteImage(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  synchronized void setMaxSizeInBytes(long value) {
+    maxSizeInBytes = value;
+    trimToSize(maxSizeInBytes);
+  }
+
+  synchronized void close() {
+    closeWriter();
+  }
+
+  private void moveToEnd(String key, Entry entry) {
+    entries.remove(key);
+    entries.put(key, entry);
+  }
+
+  private void trimToSize(long sizeInBytes) {
+    // Entries are iterated in least recently used order. The most recently added image is never evicted, even if it alone is larger than the limit.
+    final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+    while(currentSizeInBytes > sizeInBytes && entries.size() > 1 && iterator.hasNext()) {
+      final Map.Entry<String, Entry> entry = iterator.next();
+      LogWrapper.logMessage("Evicting image '" + entry.getKey() + "' from file cache");
+      iterator.remove();
+      deleteImage(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void deleteImage(String key, Entry entry) {
+    currentSizeInBytes -= entry.sizeInBytes;
+    redundantRecordCount += 2;
+    writeRecord(RECORD_DELETE + FIELD_SEPARATOR + key, true);
+    final File imageFile = ImageCache.getCacheFile(directory, key);
+    if(!imageFile.delete()) {
+      LogWrapper.logMessage("Could not delete cached image " + imageFile.toString());
+    }
+    ImageCache.removeDownsampledImages(directory, key);
+  }
+
+  private void writeRecord(String record, boolean flush) {
+    if(journalWriter == null) {
+      return;
+    }
+
+    try {
+      journalWriter.write(record);
+      journalWriter.write('\n');
+      if(flush) {
+        journalWriter.flush();
+      }
+    }
+    catch(IOException e) {
+      // The index is still good in memory, and the journal will be rebuilt from the directory the
+      // next time it is opened.
+      LogWrapper.logException(e);
+      closeWriter();
+      journalFile.delete();
+      return;
+    }
+
+    if(isCompactionNeeded()) {
+      compact();
+    }
+  }
+
+  private boolean isCompactionNeeded() {
+    return redundantRecordCount >= MIN_REDUNDANT_RECORDS_FOR_COMPACTION && redundantRecordCount >= entries.size();
+  }
+
+  /**
+   * Rewrite the journal with one line for each image in the cache. The new journal is written to a
+   * temporary file first, so that a crash halfway through does not lose the old one.
+   */
+  private void compact() {
+    closeWriter();
+    final File tempFile = new File(directory, JOURNAL_TEMP_FILE_NAME);
+    Writer writer = null;
+    try {
+      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+      writer.write(MAGIC + FIELD_SEPARATOR + VERSION + '\n');
+      for(Map.Entry<String, Entry> entry : entries.entrySet()) {
+        writer.write(getPutRecord(entry.getKey(), entry.getValue()));
+        writer.write('\n');
+      }
+      writer.close();
+      writer = null;
+      if(!tempFile.renameTo(journalFile)) {
+        throw new IOException("Could not rename " + tempFile.toString() + " to " + journalFile.toString());
+      }
+      redundantRecordCount = 0;
+    }
+    catch(IOException e) {
+      LogWrapper.logException(e);
+      tempFile.delete();
+    }
+    finally {
+      if(writer != null) {
+        try {
+          writer.close();
+        }
+        catch(IOException e) {
+          LogWrapper.logException(e);
+        }
+      }
+    }
+    openWriter();
+  }
+
+  private void openWriter() {
+    try {
+      journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+    }
+    catch(IOException e) {
+      LogWrapper.logException(e);
+      journalWriter = null;
+    }
+  }
+
+  private void closeWriter() {
+    if(journalWriter != null) {
+      try {
+        journalWriter.close();
+      }
+      catch(IOException e) {
+        LogWrapper.logException(e);
+      }
+      journalWriter = null;
+    }
+  }
+
+  private void readJournal() throws IOException {
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+      final String header = reader.readLine();
+      if(!(MAGIC + FIELD_SEPARATOR + VERSION).equals(header)) {
+        throw new IOException("Unexpected cache journal header: " + header);
+      }
+
+      String line;
+      while((line = reader.readLine()) != null) {
+        final String[] fields = line.split(String.valueOf(FIELD_SEPARATOR), -1);
+        try {
+          readRecord(fields);
+        }
+        catch(RuntimeException e) {
+          // Most likely the last line was only partly written when the app was killed
+          LogWrapper.logMessage("Ignoring bad cache journal record: " + line);
+          redundantRecordCount++;
+        }
+      }
+    }
+    finally {
+      if(reader != null) {
+        try {
+          reader.close();
+        }
+        catch(IOException e) {
+          LogWrapper.logException(e);
+        }
+      }
+    }
+  }
+
+  private void readRecord(String[] fields) {
+    final String recordType = fields[0];
+    final String key = fields[1];
+    if(RECORD_PUT.equals(recordType)) {
+      final Entry entry = new Entry();
+      entry.sizeInBytes = Long.parseLong(fields[2]);
+      entry.lastAccessTimeInMs = Long.parseLong(fields[3]);
+      entry.lastValidatedTimeInMs = Long.parseLong(fields[4]);
+      final long expirationTimeInMs = Long.parseLong(fields[5]);
+      final String eTag = fields[6].length() > 0 ? fields[6] : null;
+      final String lastModified = fields[7].length() > 0 ? fields[7] : null;
+      if(eTag != null || lastModified != null || expirationTimeInMs > 0) {
+        entry.validators = new CacheValidators();
+        entry.validators.eTag = eTag;
+        entry.validators.lastModified = lastModified;
+        entry.validators.expirationTimeInMs = expirationTimeInMs;
+      }
+      final Entry previousEntry = entries.remove(key);
+      entries.put(key, entry);
+      if(previousEntry != null) {
+        currentSizeInBytes -= previousEntry.sizeInBytes;
+        redundantRecordCount++;
+      }
+      currentSizeInBytes += entry.sizeInBytes;
+    }
+    else if(RECORD_READ.equals(recordType)) {
+      final Entry entry = entries.get(key);
+      if(entry != null) {
+        moveToEnd(key, entry);
+        entry.lastAccessTimeInMs = Long.parseLong(fields[2]);
+      }
+      redundantRecordCount++;
+    }
+    else if(RECORD_VALID.equals(recordType)) {
+      final Entry entry = entries.get(key);
+      if(entry != null) {
+        entry.lastValidatedTimeInMs = Long.parseLong(fields[2]);
+      }
+      redundantRecordCount++;
+    }
+    else if(RECORD_DELETE.equals(recordType)) {
+      final Entry entry = entries.remove(key);
+      if(entry != null) {
+        currentSizeInBytes -= entry.sizeInBytes;
+      }
+      redundantRecordCount += 2;
+    }
+    else {
+      throw new IllegalArgumentException("Unknown record type " + recordType);
+    }
+  }
+
+  private static String getPutRecord(String key, Entry entry) {
+    final CacheValidators validators = entry.validators;
+    final StringBuilder recordBuilder = new StringBuilder(128);
+    recordBuilder.append(RECORD_PUT).append(FIELD_SEPARATOR).append(key)
+      .append(FIELD_SEPARATOR).append(entry.sizeInBytes)
+      .append(FIELD_SEPARATOR).append(entry.lastAccessTimeInMs)
+      .append(FIELD_SEPARATOR).append(entry.lastValidatedTimeInMs)
+      .append(FIELD_SEPARATOR).append(validators != null ? validators.expirationTimeInMs : 0)
+      .append(FIELD_SEPARATOR).append(validators != null ? sanitizeField(validators.eTag) : "")
+      .append(FIELD_SEPARATOR).append(validators != null ? sanitizeField(validators.lastModified) : "");
+    return recordBuilder.toString();
+  }
+
+  private static String sanitizeField(String value) {
+    if(value == null) {
+      return "";
+    }
+    // Header values can't contain line breaks, but a broken server could still send a tab
+    return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+  }
+
+  /**
+   * Build the index from the files in the cache directory, using their modification times as a best
+   * guess for when they were last used. Images which older versions saved directly in the cache
+   * directory are moved into the subdirectories used by {@link ImageCache#getCacheFile(java.io.File, String)}.
+   */
+  private void scanDirectory() {
+    final List<File> imageFiles = new ArrayList<File>();
+    findImageFiles(directory, 0, imageFiles);
+
+    final Map<File, Long> lastModifiedTimes = new HashMap<File, Long>(imageFiles.size());
+    for(File file : imageFiles) {
+      lastModifiedTimes.put(file, file.lastModified());
+    }
+    Collections.sort(imageFiles, new Comparator<File>() {
+      public int compare(File file1, File file2) {
+        return lastModifiedTimes.get(file1).compareTo(lastModifiedTimes.get(file2));
+      }
+    });
+
+    for(File file : imageFiles) {
+      final String key = file.getName();
+      final Entry entry = new Entry();
+      entry.sizeInBytes = file.length();
+      entry.lastAccessTimeInMs = lastModifiedTimes.get(file);
+      entry.lastValidatedTimeInMs = entry.lastAccessTimeInMs;
+      if(directory.equals(file.getParentFile())) {
+        moveToShardDirectory(key);
+      }
+      entries.put(key, entry);
+      currentSizeInBytes += entry.sizeInBytes;
+    }
+  }
+
+  private void findImageFiles(File searchDirectory, int shardLevel, List<File> imageFiles) {
+    final File[] files = searchDirectory.listFiles();
+    if(files == null) {
+      return;
+    }
+
+    for(File file : files) {
+      final String fileName = file.getName();
+      if(file.isDirectory()) {
+        if(shardLevel < ImageCache.NUM_SHARD_LEVELS && ImageCache.isShardDirectoryName(fileName)) {
+          findImageFiles(file, shardLevel + 1, imageFiles);
+        }
+      }
+      else if(fileName.startsWith(JOURNAL_FILE_NAME) || fileName.startsWith(ImageCache.TEMP_FILE_PREFIX)) {
+        continue;
+      }
+      else {
+        imageFiles.add(file);
+      }
+    }
+  }
+
+  private void moveToShardDirectory(String key) {
+    final File flatFile = new File(directory, key);
+    final File shardedFile = ImageCache.getCacheFile(directory, key);
+    if(!flatFile.equals(shardedFile) && flatFile.exists()) {
+      ImageCache.createParentDirectory(shardedFile);
+      if(!flatFile.renameTo(shardedFile)) {
+        LogWrapper.logMessage("Could not move cached image " + flatFile.toString());
+      }
+    }
+  }
+
+  /**
+   * Downsampled images are cheap to recreate, so instead of moving those which were saved before the
+   * cache was split into subdirectories, just delete them.
+   */
+  private void removeFlatDownsampledImages() {
+    final File downsampledDirectory = new File(directory, ImageCache.DOWNSAMPLED_SUBDIRECTORY_NAME);
+    final File[] bucketDirectories = downsampledDirectory.listFiles();
+    if(bucketDirectories == null) {
+      return;
+    }
+
+    for(File bucketDirectory : bucketDirectories) {
+      final File[] files = bucketDirectory.listFiles();
+      if(files != null) {
+        for(File file : files) {
+          if(file.isFile()) {
+            file.delete();
+          }
+        }
+      }
+    }
+  }
+}
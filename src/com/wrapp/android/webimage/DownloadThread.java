@@ -23,26 +23,130 @@ package com.wrapp.android.webimage;
 
 import android.graphics.Bitmap;
 
+import java.util.List;
+
 public class DownloadThread extends TaskQueueThread {
-  public DownloadThread() {
-    super("Download");
+  private final DownloadThreadPool downloadThreadPool;
+  private final int threadIndex;
+
+  DownloadThread(DownloadThreadPool downloadThreadPool, int threadIndex, RequestQueue requestQueue) {
+    super("Download-" + threadIndex, requestQueue);
+    this.downloadThreadPool = downloadThreadPool;
+    this.threadIndex = threadIndex;
     setPriority(Thread.MIN_PRIORITY);
   }
 
+  @Override
+  protected boolean isAcceptingRequests() {
+    // Threads above the pool's current size sit idle until the network gets better
+    return threadIndex < downloadThreadPool.getNumActiveThreads() && !ImageLoader.isPaused();
+  }
+
   @Override
   protected Bitmap processRequest(ImageRequest request) {
-    if(ImageCache.isImageCached(request.context, request.imageKey) && !request.forceDownload) {
-      FileLoaderThread.getInstance().addTask(request);
+    // The router may have sent the request here because the cache's index was still loading
+    if(ImageCache.isImageCached(request.context, request.imageKey, true) && !request.forceDownload) {
+      if(!request.downloadOnly) {
+        FileLoaderThreadPool.getInstance().addTask(request);
+      }
+      return null;
+    }
+
+    // Only one thread should download any given image. If another thread is already fetching it,
+    // then that thread will take care of this request when it is finished.
+    final DownloadThreadPool.ActiveDownload download = downloadThreadPool.beginDownload(request);
+    if(download == null) {
+      LogWrapper.logMessage("Download already in progress for " + request.imageUrl);
+      return null;
     }
-    else if(ImageDownloader.loadImage(request.context, request.imageKey, request.imageUrl)) {
-      FileLoaderThread.getInstance().addTask(request);
+
+    int result = ImageDownloader.RESULT_FAILED;
+    boolean downloadSucceeded = false;
+    Bitmap bitmap = null;
+    try {
+      // The image may have finished downloading in another thread since the check above
+      if(ImageCache.isImageCached(request.context, request.imageKey) && !request.forceDownload) {
+        result = ImageDownloader.RESULT_DOWNLOADED;
+        downloadSucceeded = true;
+      }
+      else if(ImageDownloader.getDecodeWhileDownloading() && !request.downloadOnly) {
+        final ImageDownloader.DecodeResult decodeResult = new ImageDownloader.DecodeResult();
+        result = ImageDownloader.loadImage(request, decodeResult, download);
+        downloadSucceeded = result == ImageDownloader.RESULT_DOWNLOADED;
+        if(downloadSucceeded && request.forceDownload) {
+          // Bitmaps decoded from the previous version of the image are out of date now
+          MemoryCache.remove(request.imageKey);
+        }
+        if(downloadSucceeded && decodeResult.bitmap != null) {
+          bitmap = decodeResult.bitmap;
+          // Retained until the listener has been notified, see FileLoaderThread
+          BitmapPool.retain(bitmap);
+          MemoryCache.put(request.memoryCacheKey, bitmap);
+        }
+      }
+      else {
+        // Progressive listeners may get previews of the image while it is downloading
+        result = ImageDownloader.loadImage(request, null, download);
+        downloadSucceeded = result == ImageDownloader.RESULT_DOWNLOADED;
+        if(downloadSucceeded && request.forceDownload) {
+          MemoryCache.remove(request.imageKey);
+        }
+      }
     }
-    return null;
+    finally {
+      final List<ImageRequest> waitingRequests = downloadThreadPool.finishDownload(download);
+      if(bitmap != null && !waitingRequests.contains(request)) {
+        // The listener asked for another image while this one was downloading
+        BitmapPool.release(bitmap);
+        bitmap = null;
+      }
+
+      for(ImageRequest waitingRequest : waitingRequests) {
+        final ImageRequest.Listener listener = waitingRequest.listener;
+        if(listener == null) {
+          // Request was cancelled while waiting
+          continue;
+        }
+
+        if(download.isAborted() && !downloadSucceeded) {
+          // This request came in after the download was aborted, so it still wants the image
+          downloadThreadPool.addTask(waitingRequest);
+        }
+        else if(downloadSucceeded) {
+          // The bitmap decoded during the download is returned directly to this thread's listener.
+          // Other requests get it from the memory cache through the file loader, if they decode the
+          // image the same way.
+          if(!waitingRequest.downloadOnly && !(waitingRequest == request && bitmap != null)) {
+            FileLoaderThreadPool.getInstance().addTask(waitingRequest);
+          }
+        }
+        else if(result == ImageDownloader.RESULT_TRANSIENT_FAILURE && downloadThreadPool.retryLater(waitingRequest)) {
+          LogWrapper.logMessage("Download of " + waitingRequest.imageUrl + " failed, will try again");
+        }
+        else if(!waitingRequest.downloadOnly && ImageCache.isImageCached(waitingRequest.context, waitingRequest.imageKey)) {
+          // Requests which were revalidating the image while it downloaded still have the cached version
+          FileLoaderThreadPool.getInstance().addTask(waitingRequest);
+        }
+        else {
+          listener.onBitmapLoadError("Could not download image " + waitingRequest.imageUrl);
+        }
+      }
+    }
+
+    return bitmap;
   }
 
   @Override
   protected void onRequestComplete(RequestResponse response) {
-    // Never reached
+    // Only reached for images which were decoded while downloading
+    final ImageRequest.Listener listener = response.originalRequest.listener;
+    BitmapPool.onBitmapDelivered(listener, response.bitmapReference.get());
+    listener.onBitmapLoaded(response);
+  }
+
+  @Override
+  protected void onRequestFinished(ImageRequest request, Bitmap bitmap) {
+    BitmapPool.release(bitmap);
   }
 
   @Override
@@ -28,6 +28,13 @@ import android.content.IntentFilter;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import org.apache.http.client.methods.HttpGet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 public class DownloadThreadPool {
   // These don't seem to be declared in the Android SDK. Or did I just not look hard enough?
@@ -35,16 +42,75 @@ public class DownloadThreadPool {
   private static final int CONNECTION_TYPE_WIFI = 1;
   private static final int CONNECTION_TYPE_ETHERNET = 9;
   private static final int DEFAULT_MAX_THREADS = 4;
+  private static final int MAX_DOWNLOAD_ATTEMPTS = 3;
+  private static final long RETRY_DELAY_IN_MS = 1000;
 
   static DownloadThreadPool staticInstance;
   private static int maxThreads = DEFAULT_MAX_THREADS;
+  private static int maxThreadsPerHost = 0;
+  private static boolean borrowIdleThreads = false;
   private DownloadThread[] downloadThreads;
-  private int numActiveThreads = 0;
-  private int currentThread = 0;
+  // All download threads take their work from this queue, so a slow download never holds up
+  // other requests while there are idle threads. Requests for different hosts take turns, so
+  // that a slow host can't hold up images from the others either.
+  private final RequestQueue pendingRequests = new RequestQueue(true);
+  private volatile int numActiveThreads = 0;
+  // Downloads in progress, keyed by image key
+  private final HashMap<String, ActiveDownload> activeDownloads = new HashMap<String, ActiveDownload>();
+  private final Random retryDelayRandom = new Random();
+
+  /**
+   * Download in progress, and the requests which are waiting for it. A download stays registered
+   * until its thread has finished with it, even after it has been aborted, so that there is never
+   * more than one thread working on the same image.
+   */
+  static final class ActiveDownload {
+    final String imageKey;
+    final List<ImageRequest> waitingRequests = new ArrayList<ImageRequest>(1);
+    // Revalidations are conditional requests which are usually cheap, and are not aborted when nobody
+    // waits for them, since the cached image would otherwise never be checked while scrolling
+    final boolean isRevalidation;
+    private HttpGet httpGet;
+    private boolean isAborted = false;
+
+    ActiveDownload(String imageKey, boolean isRevalidation) {
+      this.imageKey = imageKey;
+      this.isRevalidation = isRevalidation;
+    }
+
+    /**
+     * Set the HTTP request which is currently being made for this download.
+     * @param httpGet HTTP request
+     * @return False if the download has been aborted, in which case the request has been aborted too
+     */
+    synchronized boolean setHttpRequest(HttpGet httpGet) {
+      this.httpGet = httpGet;
+      if(isAborted) {
+        httpGet.abort();
+        return false;
+      }
+      return true;
+    }
+
+    /** Abort the download. The downloading thread gets a failed result. */
+    synchronized void abort() {
+      isAborted = true;
+      if(httpGet != null) {
+        LogWrapper.logMessage("Aborting download of " + httpGet.getURI());
+        httpGet.abort();
+      }
+    }
+
+    synchronized boolean isAborted() {
+      return isAborted;
+    }
+  }
 
   public static class ConnectivityChangeReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
+      // Hosts which could not be reached may well be reachable over the new connection
+      HostCircuitBreaker.reset();
       DownloadThreadPool.resizeThreadPool(context);
     }
 
@@ -60,30 +126,174 @@ public class DownloadThreadPool {
     return staticInstance;
   }
 
+  public static int getMaxThreads() {
+    return maxThreads;
+  }
+
   public static void setMaxThreads(int value) {
     maxThreads = value;
   }
 
+  public static int getMaxThreadsPerHost() {
+    return maxThreadsPerHost;
+  }
+
+  public static void setMaxThreadsPerHost(int value) {
+    maxThreadsPerHost = value;
+    if(staticInstance != null) {
+      staticInstance.updateMaxRequestsPerHost();
+    }
+  }
+
+  public static boolean getBorrowIdleThreads() {
+    return borrowIdleThreads;
+  }
+
+  public static void setBorrowIdleThreads(boolean value) {
+    borrowIdleThreads = value;
+    if(staticInstance != null) {
+      staticInstance.updateMaxRequestsPerHost();
+    }
+  }
+
   private DownloadThreadPool() {
     downloadThreads = new DownloadThread[maxThreads];
     for(int i = 0; i < maxThreads; i++) {
-      downloadThreads[i] = new DownloadThread();
+      downloadThreads[i] = new DownloadThread(this, i, pendingRequests);
     }
   }
 
   public void addTask(ImageRequest request) {
-    DownloadThreadPool downloadThreadPool = getInstance();
-    // If there is only one thread in the worker pool, issue the request right away
-    if(downloadThreadPool.numActiveThreads == 1) {
-      downloadThreads[0].addTask(request);
-    }
-    else {
-      // Rotate to the next thread
-      downloadThreadPool.currentThread++;
-      if(downloadThreadPool.currentThread >= downloadThreadPool.numActiveThreads) {
-        downloadThreadPool.currentThread = 0;
+    // Since the queue is shared, it doesn't matter which thread the request is given to
+    downloadThreads[0].addTask(request);
+  }
+
+  public void wakeUp() {
+    downloadThreads[0].wakeUp();
+  }
+
+  public boolean updatePriority(ImageRequest.Listener listener, ImageRequest.Priority priority) {
+    return downloadThreads[0].updatePriority(listener, priority);
+  }
+
+  public void supersede(ImageRequest request) {
+    downloadThreads[0].supersede(request);
+  }
+
+  /**
+   * Queue a request again after its download failed for a reason which is likely to be temporary.
+   * The delay is doubled after each attempt, with some randomness so that all requests for a host
+   * which just had a hiccup don't come back at the same time. The download threads are free to work
+   * on other requests in the meantime, and since interrupted downloads are kept, the next attempt
+   * continues from where this one stopped.
+   * @param request Request whose download failed
+   * @return False if the request has been tried too many times, in which case the caller should report
+   * the error
+   */
+  boolean retryLater(ImageRequest request) {
+    if(++request.downloadAttempts >= MAX_DOWNLOAD_ATTEMPTS) {
+      return false;
+    }
+
+    final long maxDelayInMs = RETRY_DELAY_IN_MS << (request.downloadAttempts - 1);
+    final long delayInMs;
+    synchronized(retryDelayRandom) {
+      delayInMs = maxDelayInMs / 2 + (long)(retryDelayRandom.nextDouble() * maxDelayInMs / 2);
+    }
+    request.notBeforeTimeInMs = System.currentTimeMillis() + delayInMs;
+    LogWrapper.logMessage("Retrying download of " + request.imageUrl + " in " + delayInMs + "ms");
+    // If the listener has asked for something else since, the retry is simply dropped
+    pendingRequests.addIfAbsent(request);
+    return true;
+  }
+
+  int getNumActiveThreads() {
+    return numActiveThreads;
+  }
+
+  /**
+   * Register a request which is about to be downloaded. If the same image is already being
+   * downloaded by another thread, the request is attached to that download instead. Requests which
+   * are attached to a download after it has been aborted are queued again once it has finished.
+   * @param request Request to download
+   * @return Download which the caller should start, or null if it is already in progress. When a
+   * download is returned, the caller must call {@link #finishDownload(ActiveDownload)} when done.
+   */
+  public ActiveDownload beginDownload(ImageRequest request) {
+    return beginDownload(request, false);
+  }
+
+  /**
+   * Register a request whose cached image is about to be revalidated, see {@link #beginDownload(ImageRequest)}.
+   * Since revalidating may replace the cached image, it must not happen while the image is downloading.
+   * @param request Request to revalidate
+   * @return Download which the caller should start, or null if the image is already being downloaded
+   */
+  ActiveDownload beginRevalidation(ImageRequest request) {
+    return beginDownload(request, true);
+  }
+
+  private ActiveDownload beginDownload(ImageRequest request, boolean isRevalidation) {
+    synchronized(activeDownloads) {
+      ActiveDownload download = activeDownloads.get(request.imageKey);
+      if(download != null) {
+        download.waitingRequests.add(request);
+        return null;
       }
-      downloadThreads[downloadThreadPool.currentThread].addTask(request);
+
+      download = new ActiveDownload(request.imageKey, isRevalidation);
+      download.waitingRequests.add(request);
+      activeDownloads.put(request.imageKey, download);
+      return download;
+    }
+  }
+
+  /**
+   * Mark a download as finished.
+   * @param download Download returned by {@link #beginDownload(ImageRequest)}
+   * @return All requests which are still waiting for this image
+   */
+  public List<ImageRequest> finishDownload(ActiveDownload download) {
+    synchronized(activeDownloads) {
+      activeDownloads.remove(download.imageKey);
+      return new ArrayList<ImageRequest>(download.waitingRequests);
+    }
+  }
+
+  /**
+   * Called when a listener makes a new request. Requests which the listener made earlier for other
+   * images are dropped from the downloads in progress, and downloads which are no longer wanted by
+   * anybody are aborted to save bandwidth for the images which are.
+   * @param request New request
+   */
+  void onRequestAdded(ImageRequest request) {
+    final ImageRequest.Listener listener = request.listener;
+    if(listener == null) {
+      return;
+    }
+
+    final List<ActiveDownload> abortedDownloads = new ArrayList<ActiveDownload>(0);
+    synchronized(activeDownloads) {
+      // There are never more downloads in progress than there are threads, so this is cheap
+      for(ActiveDownload download : activeDownloads.values()) {
+        if(download.imageKey.equals(request.imageKey)) {
+          continue;
+        }
+
+        final Iterator<ImageRequest> waitingRequestIterator = download.waitingRequests.iterator();
+        while(waitingRequestIterator.hasNext()) {
+          if(waitingRequestIterator.next().listener == listener) {
+            waitingRequestIterator.remove();
+          }
+        }
+        if(download.waitingRequests.isEmpty() && !download.isRevalidation) {
+          abortedDownloads.add(download);
+        }
+      }
+    }
+
+    for(ActiveDownload download : abortedDownloads) {
+      download.abort();
     }
   }
 
@@ -92,6 +302,8 @@ public class DownloadThreadPool {
       downloadThreads[i].start();
     }
     numActiveThreads = getBestThreadPoolSize(context);
+    updateMaxRequestsPerHost();
+    pendingRequests.wakeUp();
   }
 
   public static void resizeThreadPool(Context context) {
@@ -101,8 +313,18 @@ public class DownloadThreadPool {
       return;
     }
 
-    downloadThreadPool.currentThread = 0;
     downloadThreadPool.numActiveThreads = downloadThreadPool.getBestThreadPoolSize(context);
+    downloadThreadPool.updateMaxRequestsPerHost();
+    // Let any threads which were just activated start on the pending requests
+    downloadThreadPool.pendingRequests.wakeUp();
+  }
+
+  private void updateMaxRequestsPerHost() {
+    // Unless told otherwise, a host may use all threads but one, so that there is always a thread free
+    // for other hosts. With a single thread there is nothing to keep free, but hosts still take turns.
+    final int maxRequestsPerHost = maxThreadsPerHost > 0 ? maxThreadsPerHost : Math.max(numActiveThreads - 1, 1);
+    pendingRequests.setMaxActiveRequestsPerHost(maxRequestsPerHost);
+    pendingRequests.setBorrowingIdleThreads(borrowIdleThreads);
   }
 
   private int getBestThreadPoolSize(final Context context) {
@@ -150,8 +372,29 @@ public class DownloadThreadPool {
   }
 
   public void cancelAllRequests() {
-    for(int i = 0; i < maxThreads; i++) {
-      downloadThreads[i].cancelAllRequests();
+    // The queue is shared, so cancelling the requests in one thread cancels them for all threads
+    downloadThreads[0].cancelAllRequests();
+
+    // Also stop the downloads which are in progress
+    final List<ImageRequest> cancelledRequests = new ArrayList<ImageRequest>();
+    final List<ActiveDownload> abortedDownloads;
+    synchronized(activeDownloads) {
+      abortedDownloads = new ArrayList<ActiveDownload>(activeDownloads.values());
+      for(ActiveDownload download : abortedDownloads) {
+        cancelledRequests.addAll(download.waitingRequests);
+        download.waitingRequests.clear();
+      }
+    }
+
+    for(ActiveDownload download : abortedDownloads) {
+      download.abort();
+    }
+    for(ImageRequest request : cancelledRequests) {
+      final ImageRequest.Listener listener = request.listener;
+      if(listener != null) {
+        listener.onBitmapLoadCancelled();
+        request.listener = null;
+      }
     }
   }
 
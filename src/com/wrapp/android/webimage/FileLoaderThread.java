@@ -22,63 +22,56 @@
 package com.wrapp.android.webimage;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.util.Date;
+import java.io.FileNotFoundException;
 
 public class FileLoaderThread extends TaskQueueThread {
-  static FileLoaderThread staticInstance;
-
-  public static FileLoaderThread getInstance() {
-    if(staticInstance == null) {
-      staticInstance = new FileLoaderThread();
-    }
-    return staticInstance;
-  }
-
-  private FileLoaderThread() {
-    super("FileLoader");
+  FileLoaderThread(int threadIndex, RequestQueue requestQueue) {
+    super("FileLoader-" + threadIndex, requestQueue);
     // Set to be slightly below normal priority so that the GUI thread runs a bit snappier
     setPriority(Thread.NORM_PRIORITY - 1);
   }
 
+  @Override
+  protected boolean isAcceptingRequests() {
+    return !ImageLoader.isPaused();
+  }
+
   @Override
   protected Bitmap processRequest(ImageRequest request) {
-    Bitmap bitmap = null;
+    // Another request may have decoded the same image while this one was waiting in the queue
+    // The returned bitmap is retained until the listener has been notified, so that it can't be
+    // evicted from the memory cache and reused for another image in the meantime.
+    Bitmap bitmap = MemoryCache.getAndRetain(request.memoryCacheKey);
+    if(bitmap != null) {
+      return bitmap;
+    }
 
-    FileInputStream inputStream = null;
-    File cacheFile = new File(ImageCache.getCacheDirectory(request.context), request.imageKey);
-    if(cacheFile.exists()) {
+    if(ImageCache.isImageCached(request.context, request.imageKey)) {
+      File cacheFile = ImageCache.getCacheFile(request.context, request.imageKey);
       try {
-        Date now = new Date();
-        long fileAgeInMs = now.getTime() - cacheFile.lastModified();
-        if(fileAgeInMs > ImageCache.getCacheRecheckAgeInMs()) {
+        if(ImageCache.isRecheckNeeded(request.context, request.imageKey)) {
           CheckTimestampThread.getInstance().addTask(request);
         }
 
         LogWrapper.logMessage("Loading image " + request.imageUrl + " from file cache");
-        inputStream = new FileInputStream(cacheFile);
-        bitmap = BitmapFactory.decodeFileDescriptor(inputStream.getFD(), null, request.loadOptions);
+        bitmap = BitmapDecoder.decodeFile(cacheFile, request);
         if(bitmap == null) {
           throw new Exception("Could not create bitmap from image " + request.imageUrl.toString());
         }
+        ImageCache.markImageAccessed(request.context, request.imageKey);
+        BitmapPool.retain(bitmap);
+        MemoryCache.put(request.memoryCacheKey, bitmap);
+      }
+      catch(FileNotFoundException e) {
+        // The index said the image was cached, but the file is gone, so download it again
+        ImageCache.onCachedImageMissing(request.context, request.imageKey);
+        DownloadThreadPool.getInstance().addTask(request);
       }
       catch(Exception e) {
         LogWrapper.logException(e);
       }
-      finally {
-        if(inputStream != null) {
-          try {
-            inputStream.close();
-          }
-          catch(IOException e) {
-            LogWrapper.logException(e);
-          }
-        }
-      }
     }
 
     return bitmap;
@@ -86,11 +79,18 @@ public class FileLoaderThread extends TaskQueueThread {
 
   @Override
   protected void onRequestComplete(RequestResponse response) {
-    response.originalRequest.listener.onBitmapLoaded(response);
+    final ImageRequest.Listener listener = response.originalRequest.listener;
+    BitmapPool.onBitmapDelivered(listener, response.bitmapReference.get());
+    listener.onBitmapLoaded(response);
   }
 
   @Override
   protected void onRequestCancelled(ImageRequest request) {
     request.listener.onBitmapLoadCancelled();
   }
+
+  @Override
+  protected void onRequestFinished(ImageRequest request, Bitmap bitmap) {
+    BitmapPool.release(bitmap);
+  }
 }
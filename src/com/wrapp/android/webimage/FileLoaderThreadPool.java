@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2012 Bohemian Wrappsody AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.wrapp.android.webimage;
+
+/**
+ * Pool of threads which load images from the file cache. Decoding is mostly CPU bound, so by default
+ * there is one thread per CPU core, up to a small maximum since every decode needs memory for the
+ * resulting bitmap.
+ */
+public class FileLoaderThreadPool {
+  private static final int DEFAULT_MAX_THREADS = 4;
+
+  static FileLoaderThreadPool staticInstance;
+  private static int numThreads = getDefaultNumThreads();
+  private FileLoaderThread[] fileLoaderThreads;
+  // All threads share this queue. It still keeps only the latest URL for each listener, and results
+  // for requests which have been superseded in the meantime are thrown away.
+  private final RequestQueue pendingRequests = new RequestQueue();
+
+  public static FileLoaderThreadPool getInstance() {
+    if(staticInstance == null) {
+      staticInstance = new FileLoaderThreadPool();
+    }
+    return staticInstance;
+  }
+
+  public static int getNumThreads() {
+    return numThreads;
+  }
+
+  public static void setNumThreads(int value) {
+    numThreads = value;
+  }
+
+  private static int getDefaultNumThreads() {
+    return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_THREADS));
+  }
+
+  private FileLoaderThreadPool() {
+    fileLoaderThreads = new FileLoaderThread[numThreads];
+    for(int i = 0; i < numThreads; i++) {
+      fileLoaderThreads[i] = new FileLoaderThread(i, pendingRequests);
+    }
+  }
+
+  public void addTask(ImageRequest request) {
+    // Since the queue is shared, it doesn't matter which thread the request is given to
+    fileLoaderThreads[0].addTask(request);
+  }
+
+  public void wakeUp() {
+    fileLoaderThreads[0].wakeUp();
+  }
+
+  public boolean updatePriority(ImageRequest.Listener listener, ImageRequest.Priority priority) {
+    return fileLoaderThreads[0].updatePriority(listener, priority);
+  }
+
+  public void supersede(ImageRequest request) {
+    fileLoaderThreads[0].supersede(request);
+  }
+
+  public void start() {
+    for(FileLoaderThread fileLoaderThread : fileLoaderThreads) {
+      fileLoaderThread.start();
+    }
+  }
+
+  public void cancelAllRequests() {
+    // The queue is shared, so cancelling the requests in one thread cancels them for all threads
+    fileLoaderThreads[0].cancelAllRequests();
+  }
+
+  public void shutdown() {
+    for(FileLoaderThread fileLoaderThread : fileLoaderThreads) {
+      fileLoaderThread.shutdown();
+    }
+  }
+}
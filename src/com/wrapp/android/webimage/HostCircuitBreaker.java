@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2012 Bohemian Wrappsody AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.wrapp.android.webimage;
+
+import java.util.HashMap;
+
+/**
+ * Keeps track of hosts which keep failing, so that requests for them can fail right away instead of
+ * tying up a download thread until the connection times out. After a number of failures in a row the
+ * host is skipped for a while, and then a single request is let through to see if it is back. If that
+ * one fails too, the host is skipped for twice as long, up to a limit.
+ */
+class HostCircuitBreaker {
+  private static final int MAX_CONSECUTIVE_FAILURES = 5;
+  private static final long MIN_OPEN_TIME_IN_MS = 15 * 1000;
+  private static final long MAX_OPEN_TIME_IN_MS = 5 * 60 * 1000;
+
+  private static final HashMap<String, HostState> hostStates = new HashMap<String, HostState>();
+
+  private static final class HostState {
+    int consecutiveFailures = 0;
+    long openTimeInMs = 0;
+    long openUntilTimeInMs = 0;
+    // Each download runs on a single thread, so the probe is recognized by the thread making it.
+    // Requests which were already in progress when the host was skipped may fail after the probe was
+    // let through, and those must not count as the probe failing.
+    Thread probeThread;
+  }
+
+  /**
+   * Check if a request may be made to a host.
+   * @param host Host name
+   * @return False if the host has been failing and should be left alone for now
+   */
+  static boolean allowRequest(String host) {
+    synchronized(hostStates) {
+      final HostState hostState = hostStates.get(host);
+      if(hostState == null || hostState.openUntilTimeInMs == 0) {
+        return true;
+      }
+
+      final long now = System.currentTimeMillis();
+      if(now < hostState.openUntilTimeInMs) {
+        return false;
+      }
+      // Let this request through as a probe, but keep everything else away until it has finished
+      hostState.openUntilTimeInMs = now + hostState.openTimeInMs;
+      hostState.probeThread = Thread.currentThread();
+      LogWrapper.logMessage("Checking if " + host + " is available again");
+      return true;
+    }
+  }
+
+  /**
+   * Called when a host has answered a request, even if the answer was an error which does not
+   * depend on the host's health, such as 404.
+   * @param host Host name
+   */
+  static void onSuccess(String host) {
+    synchronized(hostStates) {
+      if(hostStates.remove(host) != null) {
+        LogWrapper.logMessage("Host " + host + " is available again");
+      }
+    }
+  }
+
+  /**
+   * Called when a request to a host failed because of a timeout, a broken connection, or a server error.
+   * @param host Host name
+   */
+  static void onFailure(String host) {
+    synchronized(hostStates) {
+      HostState hostState = hostStates.get(host);
+      if(hostState == null) {
+        hostState = new HostState();
+        hostStates.put(host, hostState);
+      }
+
+      hostState.consecutiveFailures++;
+      if(hostState.openUntilTimeInMs != 0) {
+        if(hostState.probeThread != Thread.currentThread()) {
+          // A request which started before the host was skipped, which says nothing new about the host
+          return;
+        }
+        hostState.probeThread = null;
+        hostState.openTimeInMs = Math.min(hostState.openTimeInMs * 2, MAX_OPEN_TIME_IN_MS);
+      }
+      else if(hostState.consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+        hostState.openTimeInMs = MIN_OPEN_TIME_IN_MS;
+      }
+      else {
+        return;
+      }
+      hostState.openUntilTimeInMs = System.currentTimeMillis() + hostState.openTimeInMs;
+      LogWrapper.logMessage("Host " + host + " failed " + hostState.consecutiveFailures + " times in a row, skipping it for " +
+        hostState.openTimeInMs / 1000 + "s");
+    }
+  }
+
+  /** Forget all failures, for instance when the network connection has changed. */
+  static void reset() {
+    synchronized(hostStates) {
+      hostStates.clear();
+    }
+  }
+}
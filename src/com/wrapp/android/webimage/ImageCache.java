@@ -21,14 +21,23 @@
 
 package com.wrapp.android.webimage;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Environment;
 
-import java.io.File;
+import java.io.*;
 import java.net.URL;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ImageCache {
   private static final long ONE_DAY_IN_SEC = 24 * 60 * 60;
@@ -36,13 +45,346 @@ public class ImageCache {
   private static final long CACHE_RECHECK_AGE_IN_MS = CACHE_RECHECK_AGE_IN_SEC * 1000;
   private static final long CACHE_EXPIRATION_AGE_IN_SEC = ONE_DAY_IN_SEC * 30;
   private static final String DEFAULT_CACHE_SUBDIRECTORY_NAME = "images";
+  static final String DOWNSAMPLED_SUBDIRECTORY_NAME = "downsampled";
+  private static final String PARTIAL_SUBDIRECTORY_NAME = "partial";
+  private static final int MIN_SIZE_BUCKET = 16;
+  static final int NUM_SHARD_LEVELS = 2;
+  private static final long DEFAULT_MAX_SIZE_IN_BYTES = 50 * 1024 * 1024;
+  static final String TEMP_FILE_PREFIX = "image-";
 
+  // Cache directory on external storage, which is only valid while external storage is mounted
   private static File cacheDirectory;
+  private static String cacheSubdirectoryName = DEFAULT_CACHE_SUBDIRECTORY_NAME;
+  // Directory which is currently being used, either on external or internal storage
+  private static volatile File currentCacheDirectory;
+  private static boolean isStorageStateReceiverRegistered = false;
   private static long cacheRecheckAgeInMs = CACHE_RECHECK_AGE_IN_MS;
+  private static boolean saveDownsampledImages = false;
+  // The journal is opened on a background thread, and published here once it has been loaded
+  private static volatile DiskCacheJournal journal;
+  private static final Object journalLock = new Object();
+  private static final AtomicBoolean isOpeningJournal = new AtomicBoolean(false);
+  // Images which were removed from the cache while the journal was loading, to be removed from it
+  // once it is open. This also guards publishing the journal, so that no removal falls in between.
+  private static final Set<String> pendingJournalRemovals = new HashSet<String>();
+  private static volatile long maxSizeInBytes = DEFAULT_MAX_SIZE_IN_BYTES;
 
+  /**
+   * Check if an image is in the file cache. This only looks in the cache's index, which is kept in
+   * memory, so it is cheap enough to call for every request. Until the index has been loaded, images
+   * are reported as not cached rather than waiting for it.
+   * @param context Context used for getting app's package name
+   * @param imageKey Image key
+   * @return True if the image is cached
+   */
   public static boolean isImageCached(Context context, String imageKey) {
-    final File cacheFile = new File(getCacheDirectory(context), imageKey);
-    return cacheFile.exists();
+    return isImageCached(context, imageKey, false);
+  }
+
+  /**
+   * Check if an image is in the file cache, optionally waiting for the cache's index to be loaded.
+   * Download threads wait, so that they don't fetch an image which is already cached.
+   * @param context Context used for getting app's package name
+   * @param imageKey Image key
+   * @param waitForIndex True to load the index on this thread if it is not ready yet
+   * @return True if the image is cached
+   */
+  static boolean isImageCached(Context context, String imageKey, boolean waitForIndex) {
+    final DiskCacheJournal currentJournal = waitForIndex ? getJournal(context) : getLoadedJournal(context);
+    return currentJournal != null && currentJournal.contains(imageKey);
+  }
+
+  /**
+   * Remove an image from the cache's index if its file has disappeared, for instance because the
+   * user has cleared the app's cache from the system settings.
+   * @param context Context used for getting app's package name
+   * @param imageKey Image key
+   */
+  static void onCachedImageMissing(Context context, String imageKey) {
+    LogWrapper.logMessage("Cached image " + imageKey + " has disappeared, removing it from the index");
+    final DiskCacheJournal currentJournal = getLoadedJournal(context);
+    if(currentJournal != null) {
+      currentJournal.remove(imageKey);
+    }
+  }
+
+  public static class StorageStateReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+      ImageCache.onStorageStateChanged();
+    }
+
+    public static IntentFilter getIntentFilter() {
+      final IntentFilter intentFilter = new IntentFilter();
+      intentFilter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+      intentFilter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+      intentFilter.addAction(Intent.ACTION_MEDIA_REMOVED);
+      intentFilter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+      intentFilter.addAction(Intent.ACTION_MEDIA_EJECT);
+      intentFilter.addAction(Intent.ACTION_MEDIA_SHARED);
+      // Media broadcasts are only delivered to filters which have a data scheme
+      intentFilter.addDataScheme("file");
+      return intentFilter;
+    }
+  }
+
+  /**
+   * Get the file where an image is cached. Images are spread over two levels of subdirectories named
+   * after the first characters of their keys, since looking up files in a directory with tens of
+   * thousands of entries is very slow on the file systems used for SD cards. The subdirectories are
+   * not created here, see {@link #createParentDirectory(java.io.File)}.
+   * @param context Context used for getting app's package name
+   * @param imageKey Image key
+   * @return Image file, which may not exist
+   */
+  public static File getCacheFile(Context context, String imageKey) {
+    return getCacheFile(getCacheDirectory(context), imageKey);
+  }
+
+  static File getCacheFile(File directory, String imageKey) {
+    if(imageKey.length() < NUM_SHARD_LEVELS) {
+      return new File(directory, imageKey);
+    }
+
+    File shardDirectory = directory;
+    for(int i = 0; i < NUM_SHARD_LEVELS; i++) {
+      shardDirectory = new File(shardDirectory, imageKey.substring(i, i + 1));
+    }
+    return new File(shardDirectory, imageKey);
+  }
+
+  static boolean isShardDirectoryName(String fileName) {
+    return fileName.length() == 1 && Character.digit(fileName.charAt(0), 16) >= 0;
+  }
+
+  /**
+   * Make sure that the directory for a file from {@link #getCacheFile(java.io.File, String)} exists
+   * before writing to it.
+   * @param file Image file
+   */
+  static void createParentDirectory(File file) {
+    final File parentDirectory = file.getParentFile();
+    if(parentDirectory != null && !parentDirectory.exists()) {
+      if(!parentDirectory.mkdirs()) {
+        LogWrapper.logMessage("Could not create cache directory " + parentDirectory.toString());
+      }
+    }
+  }
+
+  /**
+   * Get the HTTP validators which were saved when an image was downloaded.
+   * @param context Context used for getting app's package name
+   * @param imageKey Image key
+   * @return Validators, or null if none were saved
+   */
+  static CacheValidators getValidators(Context context, String imageKey) {
+    final DiskCacheJournal currentJournal = getLoadedJournal(context);
+    return currentJournal != null ? currentJournal.getValidators(imageKey) : null;
+  }
+
+  /**
+   * Save the validators for an image which has just been downloaded or revalidated. This also adds
+   * the image to the cache journal, which may evict older images if the cache has grown too large.
+   * @param context Context used for getting app's package name
+   * @param imageKey Image key
+   * @param validators Validators from the server's response
+   */
+  static void saveValidators(Context context, String imageKey, CacheValidators validators) {
+    final DiskCacheJournal currentJournal = getJournal(context);
+    final File cacheFile = getCacheFile(currentJournal.getDirectory(), imageKey);
+    currentJournal.put(imageKey, cacheFile.length(), validators);
+  }
+
+  /**
+   * Get the time when a cached image was downloaded, or last confirmed to be current by the server.
+   * @param context Context used for getting app's package name
+   * @param imageKey Image key
+   * @return Time in milliseconds, or 0 if the image is not cached or the index is not loaded yet
+   */
+  static long getLastValidatedTime(Context context, String imageKey) {
+    final DiskCacheJournal currentJournal = getLoadedJournal(context);
+    return currentJournal != null ? currentJournal.getLastValidatedTime(imageKey) : 0;
+  }
+
+  /**
+   * Check if a cached image has gone longer than {@link #getCacheRecheckAgeInMs()} without being
+   * checked for changes on the server.
+   * @param context Context used for getting app's package name
+   * @param imageKey Image key
+   * @return True if the image should be revalidated, false if it is current or not cached
+   */
+  static boolean isRecheckNeeded(Context context, String imageKey) {
+    final long lastValidatedTimeInMs = getLastValidatedTime(context, imageKey);
+    return lastValidatedTimeInMs > 0 && System.currentTimeMillis() - lastValidatedTimeInMs > cacheRecheckAgeInMs;
+  }
+
+  static void markImageValidated(Context context, String imageKey, long timeInMs) {
+    final DiskCacheJournal currentJournal = getLoadedJournal(context);
+    if(currentJournal != null) {
+      currentJournal.recordValidation(imageKey, timeInMs);
+    }
+  }
+
+  /**
+   * Record that an image has been read from the file cache, so that it is evicted after images which
+   * have not been used for a longer time.
+   * @param context Context used for getting app's package name
+   * @param imageKey Image key
+   */
+  static void markImageAccessed(Context context, String imageKey) {
+    final DiskCacheJournal currentJournal = getLoadedJournal(context);
+    if(currentJournal != null) {
+      currentJournal.recordAccess(imageKey);
+    }
+  }
+
+  /**
+   * Get the journal for the current cache directory without waiting for it to be loaded. Loading a
+   * journal may mean scanning the whole cache directory, so if it is not ready it is opened in the
+   * background instead.
+   * @param context Context used for getting app's package name
+   * @return Journal, or null if it is not loaded yet
+   */
+  private static DiskCacheJournal getLoadedJournal(Context context) {
+    final DiskCacheJournal currentJournal = journal;
+    if(currentJournal != null && currentJournal.getDirectory().equals(getCacheDirectory(context))) {
+      return currentJournal;
+    }
+    openJournalInBackground(context);
+    return null;
+  }
+
+  private static void openJournalInBackground(Context context) {
+    if(!isOpeningJournal.compareAndSet(false, true)) {
+      return;
+    }
+
+    final Context applicationContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+    final Thread openJournalThread = new Thread("ImageCacheInit") {
+      @Override
+      public void run() {
+        try {
+          getJournal(applicationContext);
+        }
+        finally {
+          isOpeningJournal.set(false);
+        }
+      }
+    };
+    openJournalThread.setPriority(Thread.NORM_PRIORITY - 1);
+    openJournalThread.start();
+  }
+
+  /**
+   * Get the journal for the current cache directory, opening it if needed. The cache directory moves
+   * to internal storage when external storage is unavailable, and each directory has its own journal.
+   * This blocks while the journal is loaded, so it must not be called on the request path.
+   * @param context Context used for getting app's package name
+   * @return Journal
+   */
+  private static DiskCacheJournal getJournal(Context context) {
+    final File directory = getCacheDirectory(context);
+    synchronized(journalLock) {
+      DiskCacheJournal currentJournal = journal;
+      if(currentJournal == null || !currentJournal.getDirectory().equals(directory)) {
+        if(currentJournal != null) {
+          currentJournal.close();
+        }
+        currentJournal = DiskCacheJournal.open(directory, maxSizeInBytes);
+        synchronized(pendingJournalRemovals) {
+          for(String imageKey : pendingJournalRemovals) {
+            currentJournal.remove(imageKey);
+          }
+          pendingJournalRemovals.clear();
+          journal = currentJournal;
+        }
+        // The limit may have changed while the journal was loading
+        currentJournal.setMaxSizeInBytes(maxSizeInBytes);
+      }
+      return currentJournal;
+    }
+  }
+
+  public static long getMaxSizeInBytes() {
+    return maxSizeInBytes;
+  }
+
+  public static void setMaxSizeInBytes(long value) {
+    maxSizeInBytes = value;
+    final DiskCacheJournal currentJournal = journal;
+    if(currentJournal != null) {
+      currentJournal.setMaxSizeInBytes(value);
+    }
+  }
+
+  public static boolean getSaveDownsampledImages() {
+    return saveDownsampledImages;
+  }
+
+  public static void setSaveDownsampledImages(boolean value) {
+    saveDownsampledImages = value;
+  }
+
+  /**
+   * Round a target size up to the size which downsampled images are saved for.
+   * @param size Target width or height
+   * @return Smallest power of two which is greater than or equal to the size
+   */
+  static int getSizeBucket(int size) {
+    int bucket = MIN_SIZE_BUCKET;
+    while(bucket < size) {
+      bucket *= 2;
+    }
+    return bucket;
+  }
+
+  /**
+   * Get the file where a downsampled version of an image is saved. Downsampled images are kept in one
+   * subdirectory per size bucket, so that all versions of an image can be found without listing
+   * every file in the cache.
+   * @param context Context used for getting app's package name
+   * @param imageKey Image key
+   * @param bucketWidth Width bucket, see {@link #getSizeBucket(int)}
+   * @param bucketHeight Height bucket, see {@link #getSizeBucket(int)}
+   * @return Downsampled image file, which may not exist
+   */
+  static File getDownsampledFile(Context context, String imageKey, int bucketWidth, int bucketHeight) {
+    final File downsampledDirectory = new File(getCacheDirectory(context), DOWNSAMPLED_SUBDIRECTORY_NAME);
+    final File bucketDirectory = new File(downsampledDirectory, bucketWidth + "x" + bucketHeight);
+    return getCacheFile(bucketDirectory, imageKey);
+  }
+
+  /**
+   * Get the file where an interrupted download of an image is kept, so that the download can be
+   * resumed later. There are rarely more than a handful of these, so they are not sharded.
+   * @param context Context used for getting app's package name
+   * @param imageKey Image key
+   * @return Partially downloaded image file, which may not exist
+   */
+  static File getPartialFile(Context context, String imageKey) {
+    return new File(new File(getCacheDirectory(context), PARTIAL_SUBDIRECTORY_NAME), imageKey);
+  }
+
+  /**
+   * Remove all downsampled versions of an image, which must be done whenever the original changes.
+   * @param context Context used for getting app's package name
+   * @param imageKey Image key
+   */
+  static void removeDownsampledImages(Context context, String imageKey) {
+    removeDownsampledImages(getCacheDirectory(context), imageKey);
+  }
+
+  static void removeDownsampledImages(File cacheDirectory, String imageKey) {
+    final File downsampledDirectory = new File(cacheDirectory, DOWNSAMPLED_SUBDIRECTORY_NAME);
+    final File[] bucketDirectories = downsampledDirectory.listFiles();
+    if(bucketDirectories != null) {
+      for(File bucketDirectory : bucketDirectories) {
+        final File downsampledFile = getCacheFile(bucketDirectory, imageKey);
+        if(downsampledFile.exists()) {
+          downsampledFile.delete();
+        }
+      }
+    }
   }
 
   public static long getCacheRecheckAgeInMs() {
@@ -53,21 +395,74 @@ public class ImageCache {
     ImageCache.cacheRecheckAgeInMs = cacheRecheckAgeInMs;
   }
 
+  /**
+   * Resolve the cache directory and load the cache's index in the background, so that the first
+   * requests don't have to wait for any migration of old cache directories. This also starts
+   * listening for external storage being mounted and unmounted.
+   * @param context Context used for getting app's package name
+   */
+  static void initialize(Context context) {
+    if(context == null) {
+      return;
+    }
+
+    final Context applicationContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+    synchronized(ImageCache.class) {
+      if(!isStorageStateReceiverRegistered) {
+        applicationContext.registerReceiver(new StorageStateReceiver(), StorageStateReceiver.getIntentFilter());
+        isStorageStateReceiverRegistered = true;
+      }
+    }
+
+    openJournalInBackground(applicationContext);
+  }
+
+  /**
+   * Get the directory where images are cached. This is on external storage if it is mounted, and
+   * otherwise in the app's internal cache. The directory is only looked up again after external
+   * storage has been mounted or unmounted.
+   * @param context Context used for getting app's package name
+   * @return Cache directory
+   */
   public static File getCacheDirectory(final Context context) {
-    boolean canWriteToExternalStorage = Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED);
-    if(!canWriteToExternalStorage) {
-      LogWrapper.logMessage("Can't write to external storage, using app's internal cache");
-      cacheDirectory = null;
-      return getInternalCacheDirectory(context);
+    final File directory = currentCacheDirectory;
+    if(directory != null) {
+      return directory;
     }
 
-    if(cacheDirectory == null) {
-      setCacheDirectory(context, DEFAULT_CACHE_SUBDIRECTORY_NAME);
+    synchronized(ImageCache.class) {
+      if(currentCacheDirectory == null) {
+        boolean canWriteToExternalStorage = Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState());
+        if(!canWriteToExternalStorage) {
+          LogWrapper.logMessage("Can't write to external storage, using app's internal cache");
+          currentCacheDirectory = getInternalCacheDirectory(context);
+        }
+        else {
+          if(cacheDirectory == null) {
+            setCacheDirectory(context, cacheSubdirectoryName);
+          }
+          currentCacheDirectory = cacheDirectory;
+        }
+      }
+      return currentCacheDirectory;
+    }
+  }
+
+  /**
+   * Called when external storage has been mounted or unmounted, after which the cache directory must
+   * be looked up again.
+   */
+  static void onStorageStateChanged() {
+    synchronized(ImageCache.class) {
+      LogWrapper.logMessage("External storage state has changed");
+      currentCacheDirectory = null;
     }
-    return cacheDirectory;
   }
 
-  public static void setCacheDirectory(Context context, String subdirectoryName) {
+  public static synchronized void setCacheDirectory(Context context, String subdirectoryName) {
+    cacheSubdirectoryName = subdirectoryName;
+    currentCacheDirectory = null;
+
     // Final destination is Android/data/com.packagename/cache/subdirectory
     final File androidDirectory = new File(android.os.Environment.getExternalStorageDirectory(), "Android");
     if(!androidDirectory.exists()) {
@@ -146,12 +541,26 @@ public class ImageCache {
 
   public static void clearImageFromCaches(final Context context, final URL imageUrl) {
     String imageKey = getCacheKeyForUrl(imageUrl);
-    final File cacheFile = new File(getCacheDirectory(context), imageKey);
+    MemoryCache.remove(imageKey);
+    final File directory = getCacheDirectory(context);
+    // This is usually called on the GUI thread, so it must not wait for the journal to be loaded
+    synchronized(pendingJournalRemovals) {
+      final DiskCacheJournal currentJournal = journal;
+      if(currentJournal != null && currentJournal.getDirectory().equals(directory)) {
+        currentJournal.remove(imageKey);
+      }
+      else {
+        pendingJournalRemovals.add(imageKey);
+        openJournalInBackground(context);
+      }
+    }
+    final File cacheFile = getCacheFile(directory, imageKey);
     if(cacheFile.exists()) {
       if(!cacheFile.delete()) {
         LogWrapper.logMessage("Could not remove cached version of image " + imageUrl);
       }
     }
+    removeDownsampledImages(directory, imageKey);
   }
 
   /**
@@ -164,7 +573,7 @@ public class ImageCache {
   }
 
   /**
-   * Clear all images older than a given amount of seconds.
+   * Clear all images which have not been used for a given amount of seconds.
    * @param context Context used for getting app's package name
    * @param cacheAgeInSec Image expiration limit, in seconds
    */
@@ -172,26 +581,64 @@ public class ImageCache {
     // Clear all files from the temporary cache if external storage is available
     // TODO: This could technically be moved to external storage, but whatever
     final File internalCacheDirectory = getInternalCacheDirectory(context);
-    String[] cacheFiles = internalCacheDirectory.list();
-    if(cacheFiles != null) {
-      for(String child : cacheFiles) {
-        File childFile = new File(internalCacheDirectory, child);
-        LogWrapper.logMessage("Deleting image '" + child + "' from internal cache");
-        childFile.delete();
+    synchronized(journalLock) {
+      // The journal is deleted along with everything else, so it must be rebuilt next time. Holding
+      // the lock keeps it from being opened again until the directory is empty.
+      if(journal != null && journal.getDirectory().equals(internalCacheDirectory)) {
+        journal.close();
+        journal = null;
       }
+      LogWrapper.logMessage("Deleting all images from internal cache");
+      deleteDirectoryContents(internalCacheDirectory);
     }
 
     final long cacheAgeInMs = cacheAgeInSec * 1000;
     Date now = new Date();
-    final File externalCacheDirectory = getCacheDirectory(context);
-    cacheFiles = externalCacheDirectory.list();
+    final DiskCacheJournal currentJournal = getJournal(context);
+    currentJournal.removeImagesAccessedBefore(now.getTime() - cacheAgeInMs);
+
+    // Downsampled images are never read without their original, so they can simply go by age
+    final File externalCacheDirectory = currentJournal.getDirectory();
+    final File downsampledDirectory = new File(externalCacheDirectory, DOWNSAMPLED_SUBDIRECTORY_NAME);
+    final File[] bucketDirectories = downsampledDirectory.listFiles();
+    if(bucketDirectories != null) {
+      for(File bucketDirectory : bucketDirectories) {
+        deleteOldFiles(bucketDirectory, cacheAgeInMs, now);
+      }
+    }
+    // Downloads which were interrupted that long ago are unlikely to ever be resumed
+    deleteOldFiles(new File(externalCacheDirectory, PARTIAL_SUBDIRECTORY_NAME), cacheAgeInMs, now);
+  }
+
+  private static void deleteDirectoryContents(File directory) {
+    final File[] files = directory.listFiles();
+    if(files == null) {
+      return;
+    }
+
+    for(File file : files) {
+      // Images are kept in shard directories, next to the directories for downsampled and partial images
+      if(file.isDirectory()) {
+        deleteDirectoryContents(file);
+      }
+      if(!file.delete()) {
+        LogWrapper.logMessage("Could not delete " + file.toString() + " from internal cache");
+      }
+    }
+  }
+
+  private static void deleteOldFiles(File directory, long cacheAgeInMs, Date now) {
+    String[] cacheFiles = directory.list();
     if(cacheFiles != null) {
       for(String child : cacheFiles) {
-        File childFile = new File(externalCacheDirectory, child);
-        if(childFile.isFile()) {
+        File childFile = new File(directory, child);
+        if(isShardDirectoryName(child)) {
+          deleteOldFiles(childFile, cacheAgeInMs, now);
+        }
+        else if(childFile.isFile()) {
           long fileAgeInMs = now.getTime() - childFile.lastModified();
           if(fileAgeInMs > cacheAgeInMs) {
-            LogWrapper.logMessage("Deleting image '" + child + "' from external cache");
+            LogWrapper.logMessage("Deleting old file '" + child + "' from external cache");
             childFile.delete();
           }
         }
@@ -202,32 +649,144 @@ public class ImageCache {
   private static final char[] HEX_CHARACTERS = {
     '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
   };
+  // Must be a power of two, since it is also the size of the table of recent URL objects
+  private static final int MAX_CACHED_KEYS = 256;
+  private static final int MD5_LENGTH_IN_BYTES = 16;
+
+  // Keys for recently used URLs, since the same URLs are bound over and over again when scrolling
+  // through a list. Apps usually keep their URL objects around, so those are looked up by identity
+  // first, which saves building the URL's string. Both tables are guarded by recentCacheKeys.
+  private static final URL[] recentUrls = new URL[MAX_CACHED_KEYS];
+  private static final String[] recentUrlKeys = new String[MAX_CACHED_KEYS];
+  private static final LinkedHashMap<String, String> recentCacheKeys = new LinkedHashMap<String, String>(64, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > MAX_CACHED_KEYS;
+    }
+  };
+
+  // Looking up a MessageDigest goes through the security providers each time, so each thread keeps
+  // its own digest along with a buffer for the encoded URL.
+  private static final ThreadLocal<CacheKeyHasher> cacheKeyHashers = new ThreadLocal<CacheKeyHasher>() {
+    @Override
+    protected CacheKeyHasher initialValue() {
+      try {
+        return new CacheKeyHasher(MessageDigest.getInstance("MD5"));
+      }
+      catch(NoSuchAlgorithmException e) {
+        LogWrapper.logException(e);
+        return null;
+      }
+    }
+  };
+
+  private static final class CacheKeyHasher {
+    private final MessageDigest digest;
+    private byte[] buffer = new byte[256];
+    private final byte[] resultBytes = new byte[MD5_LENGTH_IN_BYTES];
+    private final char[] hexChars = new char[MD5_LENGTH_IN_BYTES * 2];
+
+    CacheKeyHasher(MessageDigest digest) {
+      this.digest = digest;
+    }
+
+    String hash(String string) {
+      final int length = encodeUtf8(string);
+      digest.reset();
+      digest.update(buffer, 0, length);
+      try {
+        digest.digest(resultBytes, 0, MD5_LENGTH_IN_BYTES);
+      }
+      catch(DigestException e) {
+        LogWrapper.logException(e);
+        return "";
+      }
+      for(int i = 0; i < MD5_LENGTH_IN_BYTES; i++) {
+        final byte b = resultBytes[i];
+        hexChars[i * 2] = HEX_CHARACTERS[(b & 0xf0) >> 4];
+        hexChars[i * 2 + 1] = HEX_CHARACTERS[b & 0x0f];
+      }
+      return new String(hexChars, 0, hexChars.length);
+    }
+
+    /**
+     * Encode a string as UTF-8 into the buffer, which grows if needed.
+     * @param string String to encode
+     * @return Number of bytes written
+     */
+    private int encodeUtf8(String string) {
+      final int length = string.length();
+      // Each char takes at most three bytes, surrogate pairs take four bytes for two chars
+      if(buffer.length < length * 3) {
+        buffer = new byte[length * 3];
+      }
+
+      int position = 0;
+      for(int i = 0; i < length; i++) {
+        final char c = string.charAt(i);
+        if(c < 0x80) {
+          buffer[position++] = (byte)c;
+        }
+        else if(c < 0x800) {
+          buffer[position++] = (byte)(0xc0 | (c >> 6));
+          buffer[position++] = (byte)(0x80 | (c & 0x3f));
+        }
+        else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+          final int codePoint = Character.toCodePoint(c, string.charAt(++i));
+          buffer[position++] = (byte)(0xf0 | (codePoint >> 18));
+          buffer[position++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+          buffer[position++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+          buffer[position++] = (byte)(0x80 | (codePoint & 0x3f));
+        }
+        else if(c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+          // Unpaired surrogates can't be encoded, so do the same as String.getBytes()
+          buffer[position++] = '?';
+        }
+        else {
+          buffer[position++] = (byte)(0xe0 | (c >> 12));
+          buffer[position++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+          buffer[position++] = (byte)(0x80 | (c & 0x3f));
+        }
+      }
+      return position;
+    }
+  }
 
   /**
    * Calculate a hash key for the given URL, which is used to create safe filenames and
    * key strings. Internally, this method uses MD5, as that is available on Android 2.1
-   * devices (unlike base64, for example).
+   * devices (unlike base64, for example). The URL is hashed as UTF-8.
    * @param url Image URL
    * @return Hash for image URL
    */
   public static String getCacheKeyForUrl(URL url) {
-    String result = "";
-
-    try {
-      String urlString = url.toString();
-      MessageDigest digest = MessageDigest.getInstance("MD5");
-      digest.update(urlString.getBytes(), 0, urlString.length());
-      byte[] resultBytes = digest.digest();
-      StringBuilder hexStringBuilder = new StringBuilder(2 * resultBytes.length);
-      for(final byte b : resultBytes) {
-        hexStringBuilder.append(HEX_CHARACTERS[(b & 0xf0) >> 4]).append(HEX_CHARACTERS[b & 0x0f]);
+    // Note that URL.equals() and URL.hashCode() may resolve the host name, so the URL object
+    // itself must never be used as a map key. Comparing identities is fine though.
+    final int slot = System.identityHashCode(url) & (MAX_CACHED_KEYS - 1);
+    synchronized(recentCacheKeys) {
+      if(recentUrls[slot] == url) {
+        return recentUrlKeys[slot];
       }
-      result = hexStringBuilder.toString();
     }
-    catch(NoSuchAlgorithmException e) {
-      LogWrapper.logException(e);
+
+    final String urlString = url.toString();
+    String result;
+    synchronized(recentCacheKeys) {
+      result = recentCacheKeys.get(urlString);
+    }
+    if(result == null) {
+      final CacheKeyHasher hasher = cacheKeyHashers.get();
+      if(hasher == null) {
+        return "";
+      }
+      result = hasher.hash(urlString);
     }
 
+    synchronized(recentCacheKeys) {
+      recentCacheKeys.put(urlString, result);
+      recentUrls[slot] = url;
+      recentUrlKeys[slot] = result;
+    }
     return result;
   }
 }
@@ -22,15 +22,27 @@
 package com.wrapp.android.webimage;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.net.http.AndroidHttpClient;
 import android.os.Build;
 import org.apache.http.*;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 
 import java.io.*;
 import java.net.URL;
@@ -43,22 +55,115 @@ public class ImageDownloader {
   private static final int CONNECTION_TIMEOUT_IN_MS = 10 * 1000;
   private static final int DEFAULT_BUFFER_SIZE = 8192;
   private static final int MAX_REDIRECT_COUNT = 4;
+  // Not in HttpStatus, since it was added long after HttpClient 4.0, see RFC 6585
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+  // Small images are quicker to download again than to keep track of
+  private static final long MIN_RESUMABLE_SIZE = 16 * 1024;
   private static String userAgent = null;
+  private static HttpClient httpClient = null;
+  private static volatile boolean decodeWhileDownloading = false;
+  private static volatile boolean progressiveLoading = false;
+
+  // Results for downloadImage()
+  static final int RESULT_FAILED = 0;
+  static final int RESULT_DOWNLOADED = 1;
+  static final int RESULT_NOT_MODIFIED = 2;
+  // Timeouts, broken connections and server errors, which may well go away if the request is retried
+  static final int RESULT_TRANSIENT_FAILURE = 3;
+  // The host has been failing, so no request was made, see HostCircuitBreaker
+  static final int RESULT_HOST_UNAVAILABLE = 4;
 
   public static boolean loadImage(final Context context, final String imageKey, final URL imageUrl) {
-    return loadImage(context, imageKey, imageUrl, 0);
+    return downloadImage(context, imageKey, imageUrl, null, null, null, null, 0) == RESULT_DOWNLOADED;
+  }
+
+  /** Bitmap which was decoded while downloading an image, see {@link #loadImage(ImageRequest, DecodeResult, DownloadThreadPool.ActiveDownload)}. */
+  static final class DecodeResult {
+    Bitmap bitmap;
+  }
+
+  /**
+   * Download an image to the file cache, and decode it for a request at the same time. The response
+   * is written to the cache file as the decoder reads it, so the bitmap is ready as soon as the
+   * download finishes, without reading the file back from disk.
+   * @param request Request to download and decode the image for
+   * @param decodeResult Receives the decoded bitmap. This is null if the image was downloaded but could
+   * not be decoded while downloading, in which case it should be loaded from the file cache. If the
+   * decodeResult itself is null, the image is only downloaded, with previews sent to the request's
+   * listener if progressive loading is enabled.
+   * @param download Download which the image is fetched for, so that it can be aborted from other threads
+   * @return One of RESULT_DOWNLOADED, RESULT_FAILED, RESULT_TRANSIENT_FAILURE or RESULT_HOST_UNAVAILABLE. Transient
+   * failures are not retried here, see {@link DownloadThreadPool#retryLater(ImageRequest)}.
+   */
+  static int loadImage(final ImageRequest request, DecodeResult decodeResult, DownloadThreadPool.ActiveDownload download) {
+    return downloadImage(request.context, request.imageKey, request.imageUrl, null, request, decodeResult, download, 0);
+  }
+
+  public static boolean getProgressiveLoading() {
+    return progressiveLoading;
+  }
+
+  public static void setProgressiveLoading(boolean value) {
+    progressiveLoading = value;
+  }
+
+  public static boolean getDecodeWhileDownloading() {
+    return decodeWhileDownloading;
   }
 
-  private static boolean loadImage(final Context context, final String imageKey, final URL imageUrl, int redirectCount) {
+  public static void setDecodeWhileDownloading(boolean value) {
+    decodeWhileDownloading = value;
+  }
+
+  /**
+   * Check if the cached version of an image is still current by making a conditional request to the
+   * server, using the validators saved when the image was downloaded. If the image has changed, the
+   * server will send the new version in the same response, which replaces the cached file.
+   * @param context Context used for getting app's package name
+   * @param imageKey Image key
+   * @param imageUrl Image URL
+   * @param validators Validators for the cached image, or null if none were saved
+   * @param download Claim on the image from {@link DownloadThreadPool#beginRevalidation(ImageRequest)}
+   * @return One of RESULT_NOT_MODIFIED, RESULT_DOWNLOADED, RESULT_FAILED, RESULT_TRANSIENT_FAILURE or
+   * RESULT_HOST_UNAVAILABLE
+   */
+  static int revalidateImage(final Context context, final String imageKey, final URL imageUrl, CacheValidators validators,
+                             DownloadThreadPool.ActiveDownload download) {
+    if(validators == null) {
+      // Images downloaded by older versions of WebImage have no validators, but the file's timestamp
+      // is close enough to the time it was downloaded to be used in an If-Modified-Since request.
+      validators = new CacheValidators();
+      final File cacheFile = ImageCache.getCacheFile(context, imageKey);
+      validators.lastModified = DateUtils.formatDate(new Date(cacheFile.lastModified()));
+    }
+    return downloadImage(context, imageKey, imageUrl, validators, null, null, download, 0);
+  }
+
+  private static int downloadImage(final Context context, final String imageKey, final URL imageUrl,
+                                   final CacheValidators validators, final ImageRequest request,
+                                   final DecodeResult decodeResult, final DownloadThreadPool.ActiveDownload download,
+                                   int redirectCount) {
     if(redirectCount > MAX_REDIRECT_COUNT) {
       LogWrapper.logMessage("Too many redirects!");
-      return false;
+      return RESULT_FAILED;
+    }
+    final String host = imageUrl.getHost();
+    if(!HostCircuitBreaker.allowRequest(host)) {
+      LogWrapper.logMessage("Not downloading " + imageUrl + ", host has been failing");
+      return RESULT_HOST_UNAVAILABLE;
     }
 
-    HttpClient httpClient = null;
+    HttpGet httpGet = null;
     HttpEntity responseEntity = null;
     BufferedInputStream bufferedInputStream = null;
     BufferedOutputStream bufferedOutputStream = null;
+    File cacheFile = null;
+    // Revalidation requests are conditional already, and never have anything to resume. Partial files
+    // are only touched by the thread which holds the image's ActiveDownload, since that guarantees
+    // that no other thread is writing to the same file.
+    final boolean canUsePartialFile = validators == null && download != null;
+    final PartialDownload partialDownload = canUsePartialFile ? PartialDownload.find(context, imageKey) : null;
+    boolean isResumable = false;
 
     try {
       final String imageUrlString = imageUrl.toString();
@@ -66,80 +171,213 @@ public class ImageDownloader {
         throw new Exception("Passed empty URL");
       }
       LogWrapper.logMessage("Requesting image " + imageUrlString);
-      httpClient = getHttpClient();
-      final HttpParams httpParams = httpClient.getParams();
-      httpParams.setParameter(CoreConnectionPNames.SO_TIMEOUT, CONNECTION_TIMEOUT_IN_MS);
-      httpParams.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, CONNECTION_TIMEOUT_IN_MS);
-      httpParams.setParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, DEFAULT_BUFFER_SIZE);
-      final HttpGet httpGet = new HttpGet(imageUrlString);
-      final HttpResponse response = httpClient.execute(httpGet);
+      httpGet = new HttpGet(imageUrlString);
+      if(download != null && !download.setHttpRequest(httpGet)) {
+        LogWrapper.logMessage("Download of " + imageUrlString + " was aborted");
+        return RESULT_FAILED;
+      }
+      long resumeOffset = 0;
+      if(validators != null) {
+        if(validators.eTag != null) {
+          httpGet.addHeader("If-None-Match", validators.eTag);
+        }
+        if(validators.lastModified != null) {
+          httpGet.addHeader("If-Modified-Since", validators.lastModified);
+        }
+      }
+      else if(partialDownload != null) {
+        // If-Range makes the server send the whole image instead if it has changed since the partial download
+        resumeOffset = partialDownload.file.length();
+        LogWrapper.logMessage("Resuming download of " + imageUrlString + " from byte " + resumeOffset);
+        httpGet.addHeader("Range", "bytes=" + resumeOffset + "-");
+        httpGet.addHeader("If-Range", partialDownload.rangeValidator);
+      }
+      final HttpResponse response;
+      try {
+        response = getHttpClient().execute(httpGet);
+      }
+      catch(IOException e) {
+        if(httpGet.isAborted()) {
+          LogWrapper.logMessage("Download of " + imageUrlString + " was aborted");
+          return RESULT_FAILED;
+        }
+        // Most likely the connection timed out or the host name could not be resolved
+        LogWrapper.logException(e);
+        HostCircuitBreaker.onFailure(host);
+        return RESULT_TRANSIENT_FAILURE;
+      }
+
+      final StatusLine statusLine = response.getStatusLine();
+      final int statusCode = statusLine.getStatusCode();
+      final boolean isTransientError = isTransientError(statusCode);
+      if(isTransientError) {
+        HostCircuitBreaker.onFailure(host);
+      }
+      else {
+        HostCircuitBreaker.onSuccess(host);
+      }
+      if(statusCode == HttpStatus.SC_NOT_MODIFIED && validators != null) {
+        // A 304 response has no body, so the connection has already been released
+        LogWrapper.logMessage("Image " + imageUrlString + " has not been modified");
+        ImageCache.saveValidators(context, imageKey, getValidatorsFromResponse(response, validators));
+        return RESULT_NOT_MODIFIED;
+      }
+      else if(statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && partialDownload != null) {
+        // The partial file is at least as large as the image, so something is wrong with it
+        LogWrapper.logMessage("Could not resume download of " + imageUrlString + ", starting over");
+        partialDownload.delete();
+        if(response.getEntity() != null) {
+          response.getEntity().consumeContent();
+        }
+        return downloadImage(context, imageKey, imageUrl, validators, request, decodeResult, download, redirectCount + 1);
+      }
 
       responseEntity = response.getEntity();
       if(responseEntity == null) {
         throw new Exception("No response entity for image " + imageUrl.toString());
       }
-      final StatusLine statusLine = response.getStatusLine();
-      final int statusCode = statusLine.getStatusCode();
       switch(statusCode) {
         case HttpStatus.SC_OK:
+          // Either the server does not support ranges, or the image has changed
+          resumeOffset = 0;
           break;
+        case HttpStatus.SC_PARTIAL_CONTENT:
+          if(resumeOffset > 0 && getRangeStart(response) == resumeOffset) {
+            break;
+          }
+          LogWrapper.logMessage("Got unexpected range for image " + imageUrlString);
+          if(partialDownload != null) {
+            partialDownload.delete();
+          }
+          return RESULT_TRANSIENT_FAILURE;
         case HttpStatus.SC_MOVED_TEMPORARILY:
         case HttpStatus.SC_MOVED_PERMANENTLY:
         case HttpStatus.SC_SEE_OTHER:
           final String location = response.getFirstHeader("Location").getValue();
           LogWrapper.logMessage("Image redirected to " + location);
-          // Force close the connection now, otherwise we risk leaking too many open HTTP connections
+          // Release the connection back to the pool now, since the redirected request will need one
           responseEntity.consumeContent();
           responseEntity = null;
-          if(httpClient instanceof AndroidHttpClient) {
-            ((AndroidHttpClient)httpClient).close();
-          }
-          httpClient = null;
-          return loadImage(context, imageKey, new URL(location), redirectCount + 1);
+          return downloadImage(context, imageKey, new URL(location), validators, request, decodeResult, download, redirectCount + 1);
         default:
           LogWrapper.logMessage("Could not download image, got status code " + statusCode);
-          return false;
+          return isTransientError ? RESULT_TRANSIENT_FAILURE : RESULT_FAILED;
       }
 
       bufferedInputStream = new BufferedInputStream(responseEntity.getContent());
-      File cacheFile = File.createTempFile("image-", "tmp", ImageCache.getCacheDirectory(context));
-      bufferedOutputStream = new BufferedOutputStream(new FileOutputStream(cacheFile));
-
+      String rangeValidator = getRangeValidator(response);
+      if(rangeValidator == null && resumeOffset > 0) {
+        rangeValidator = partialDownload.rangeValidator;
+      }
       long contentSize = responseEntity.getContentLength();
-      long totalBytesRead = 0;
+      if(canUsePartialFile && rangeValidator != null && (contentSize < 0 || contentSize + resumeOffset >= MIN_RESUMABLE_SIZE)) {
+        // Download straight to the partial file, so that it can be resumed if the connection drops
+        final PartialDownload newPartialDownload = PartialDownload.create(context, imageKey, rangeValidator);
+        if(newPartialDownload != null) {
+          cacheFile = newPartialDownload.file;
+          isResumable = true;
+        }
+        else {
+          resumeOffset = 0;
+        }
+      }
+      else {
+        resumeOffset = 0;
+      }
+      if(cacheFile == null) {
+        if(partialDownload != null) {
+          // Whatever was downloaded before is of no use anymore
+          partialDownload.delete();
+        }
+        cacheFile = File.createTempFile(ImageCache.TEMP_FILE_PREFIX, "tmp", ImageCache.getCacheDirectory(context));
+      }
+      bufferedOutputStream = new BufferedOutputStream(new FileOutputStream(cacheFile, resumeOffset > 0));
+
+      if(contentSize >= 0) {
+        contentSize += resumeOffset;
+      }
+      long totalBytesRead = resumeOffset;
       try {
-        int bytesRead;
-        final byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-        do {
-          bytesRead = bufferedInputStream.read(buffer, 0, DEFAULT_BUFFER_SIZE);
-          if(bytesRead > 0) {
-            bufferedOutputStream.write(buffer, 0, bytesRead);
-            totalBytesRead += bytesRead;
-          }
-        } while(bytesRead > 0);
+        // The decoder needs the whole image, so resumed downloads are decoded from the file afterwards
+        if(request != null && decodeResult != null && resumeOffset == 0) {
+          final TeeInputStream teeInputStream = new TeeInputStream(bufferedInputStream, bufferedOutputStream);
+          decodeResult.bitmap = BitmapDecoder.decodeStream(teeInputStream, request);
+          // The decoder may stop before the end of the stream, but the file must still be complete
+          teeInputStream.drain();
+          totalBytesRead = teeInputStream.getBytesRead();
+        }
+        else {
+          final PreviewDecoder previewDecoder = PreviewDecoder.forRequest(request, cacheFile, bufferedOutputStream);
+          int bytesRead;
+          final byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+          do {
+            bytesRead = bufferedInputStream.read(buffer, 0, DEFAULT_BUFFER_SIZE);
+            if(bytesRead > 0) {
+              bufferedOutputStream.write(buffer, 0, bytesRead);
+              totalBytesRead += bytesRead;
+              if(previewDecoder != null) {
+                previewDecoder.onProgress(totalBytesRead, contentSize);
+              }
+            }
+          } while(bytesRead > 0);
+        }
       }
       catch(IOException e) {
+        responseEntity = null;
+        if(decodeResult != null) {
+          decodeResult.bitmap = null;
+        }
+        if(httpGet.isAborted()) {
+          // Nobody wants the image anymore, so there's no point in retrying
+          LogWrapper.logMessage("Download of " + imageUrlString + " was aborted");
+          return RESULT_FAILED;
+        }
         LogWrapper.logException(e);
-        return false;
+        // The connection is in an unknown state, so make sure that it is not reused
+        httpGet.abort();
+        HostCircuitBreaker.onFailure(host);
+        return RESULT_TRANSIENT_FAILURE;
       }
 
-      if(totalBytesRead != contentSize) {
+      // Content length is negative when the server does not send it, ie for chunked responses
+      if(contentSize >= 0 && totalBytesRead != contentSize) {
         LogWrapper.logMessage("Short read! Expected " + contentSize + "b, got " + totalBytesRead);
-        return false;
+        if(decodeResult != null) {
+          // Whatever was decoded from a truncated image is not worth showing
+          decodeResult.bitmap = null;
+        }
+        if(totalBytesRead > contentSize) {
+          // The file can't be trusted, so start over next time
+          isResumable = false;
+        }
+        return RESULT_TRANSIENT_FAILURE;
       }
       else {
+        // The file must be complete before it is moved into place and its size is recorded
+        bufferedOutputStream.close();
+        bufferedOutputStream = null;
+        File outputFile = ImageCache.getCacheFile(context, imageKey);
+        ImageCache.createParentDirectory(outputFile);
+        if(!cacheFile.renameTo(outputFile)) {
+          LogWrapper.logMessage("Could not move downloaded image to " + outputFile.toString());
+          return RESULT_FAILED;
+        }
+        cacheFile = null;
+        if(isResumable) {
+          PartialDownload.deleteValidator(context, imageKey);
+        }
         LogWrapper.logMessage("Downloaded image " + imageUrlString + " to file cache");
-        File outputFile = new File(ImageCache.getCacheDirectory(context), imageKey);
-        cacheFile.renameTo(outputFile);
+        ImageCache.saveValidators(context, imageKey, getValidatorsFromResponse(response, null));
+        ImageCache.removeDownsampledImages(context, imageKey);
       }
     }
     catch(IOException e) {
       LogWrapper.logException(e);
-      return false;
+      return RESULT_FAILED;
     }
     catch(Exception e) {
       LogWrapper.logException(e);
-      return false;
+      return RESULT_FAILED;
     }
     finally {
       try {
@@ -157,73 +395,173 @@ public class ImageDownloader {
       catch(IOException e) {
         LogWrapper.logException(e);
       }
-      if(httpClient != null) {
-        try {
-          if(httpClient instanceof AndroidHttpClient) {
-            ((AndroidHttpClient)httpClient).close();
-          }
-        }
-        catch(Exception e) {
-          // Ignore
-        }
+
+      // Don't leave partial downloads lying around in the cache directory, unless they can be resumed
+      if(cacheFile != null && isResumable && cacheFile.length() > 0) {
+        LogWrapper.logMessage("Keeping " + cacheFile.length() + "b of " + imageUrl.toString() + " for resuming later");
+      }
+      else if(cacheFile != null && isResumable) {
+        PartialDownload.deleteValidator(context, imageKey);
+        cacheFile.delete();
+      }
+      else if(cacheFile != null && !cacheFile.delete()) {
+        LogWrapper.logMessage("Could not delete temporary file " + cacheFile.toString());
       }
     }
 
-    return true;
+    return RESULT_DOWNLOADED;
   }
 
-  public static Date getServerTimestamp(final URL imageUrl) {
-    Date expirationDate = new Date();
-    HttpClient httpClient = null;
+  /**
+   * Check if an error response is likely to be different if the request is made again later.
+   * @param statusCode HTTP status code
+   * @return True for server errors, timeouts and rate limiting
+   */
+  private static boolean isTransientError(int statusCode) {
+    return statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR || statusCode == HttpStatus.SC_REQUEST_TIMEOUT ||
+      statusCode == SC_TOO_MANY_REQUESTS;
+  }
 
+  /**
+   * Get the validator to send in an If-Range header when resuming a download of this response. Weak
+   * ETags can't be used for ranges, see RFC 2616 section 14.27.
+   * @param response Server response
+   * @return Strong ETag or Last-Modified date, or null if the download can't be resumed
+   */
+  private static String getRangeValidator(HttpResponse response) {
+    Header header = response.getFirstHeader("Accept-Ranges");
+    if(header != null && "none".equalsIgnoreCase(header.getValue())) {
+      return null;
+    }
+    header = response.getFirstHeader("ETag");
+    if(header != null && !header.getValue().startsWith("W/")) {
+      return header.getValue();
+    }
+    header = response.getFirstHeader("Last-Modified");
+    return header != null ? header.getValue() : null;
+  }
+
+  /**
+   * Get the offset of the first byte in a 206 response, from a Content-Range header such as
+   * "bytes 1000-4999/5000".
+   * @param response Server response
+   * @return Offset of the first byte, or -1 if the header is missing or invalid
+   */
+  private static long getRangeStart(HttpResponse response) {
+    final Header header = response.getFirstHeader("Content-Range");
+    if(header == null) {
+      return -1;
+    }
+    final String value = header.getValue().trim();
+    final int start = value.indexOf(' ') + 1;
+    final int end = value.indexOf('-', start);
+    if(!value.startsWith("bytes") || start <= 0 || end < 0) {
+      return -1;
+    }
     try {
-      final String imageUrlString = imageUrl.toString();
-      if(imageUrlString == null || imageUrlString.length() == 0) {
-        throw new Exception("Passed empty URL");
-      }
-      LogWrapper.logMessage("Requesting image " + imageUrlString);
-      httpClient = getHttpClient();
-      final HttpParams httpParams = httpClient.getParams();
-      httpParams.setParameter(CoreConnectionPNames.SO_TIMEOUT, CONNECTION_TIMEOUT_IN_MS);
-      httpParams.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, CONNECTION_TIMEOUT_IN_MS);
-      httpParams.setParameter(CoreConnectionPNames.SOCKET_BUFFER_SIZE, DEFAULT_BUFFER_SIZE);
-      final HttpHead httpHead = new HttpHead(imageUrlString);
-      final HttpResponse response = httpClient.execute(httpHead);
+      return Long.parseLong(value.substring(start, end).trim());
+    }
+    catch(NumberFormatException e) {
+      return -1;
+    }
+  }
 
-      Header[] header = response.getHeaders("Expires");
-      if(header != null && header.length > 0) {
-        expirationDate = parseServerDateHeader(header[0]);
-        LogWrapper.logMessage("Image at " + imageUrl.toString() + " expires on " + expirationDate.toString());
-      }
+  /**
+   * Read the caching headers from a response. A 304 response is allowed to leave out validators which
+   * have not changed, in which case the previous values are kept.
+   * @param response Server response
+   * @param previousValidators Validators sent with the request, or null
+   * @return Validators for the image
+   */
+  private static CacheValidators getValidatorsFromResponse(HttpResponse response, CacheValidators previousValidators) {
+    final CacheValidators validators = new CacheValidators();
+    if(previousValidators != null) {
+      validators.eTag = previousValidators.eTag;
+      validators.lastModified = previousValidators.lastModified;
     }
-    catch(Exception e) {
-      LogWrapper.logException(e);
+
+    Header header = response.getFirstHeader("ETag");
+    if(header != null) {
+      validators.eTag = header.getValue();
     }
-    finally {
-      if(httpClient != null) {
-        try {
-          if(httpClient instanceof AndroidHttpClient) {
-            ((AndroidHttpClient)httpClient).close();
-          }
+    header = response.getFirstHeader("Last-Modified");
+    if(header != null) {
+      validators.lastModified = header.getValue();
+    }
+
+    // Cache-Control takes precedence over Expires, see RFC 2616 section 14.9.3
+    final long now = System.currentTimeMillis();
+    header = response.getFirstHeader("Cache-Control");
+    if(header != null) {
+      for(HeaderElement element : header.getElements()) {
+        final String name = element.getName();
+        if("no-cache".equalsIgnoreCase(name) || "no-store".equalsIgnoreCase(name)) {
+          validators.expirationTimeInMs = 0;
+          return validators;
         }
-        catch(Exception e) {
-          // Ignore
+        else if("max-age".equalsIgnoreCase(name) && element.getValue() != null) {
+          try {
+            validators.expirationTimeInMs = now + Long.parseLong(element.getValue()) * 1000;
+            return validators;
+          }
+          catch(NumberFormatException e) {
+            LogWrapper.logMessage("Invalid max-age value: " + element.getValue());
+          }
         }
       }
     }
 
-    return expirationDate;
+    header = response.getFirstHeader("Expires");
+    if(header != null) {
+      try {
+        validators.expirationTimeInMs = parseServerDateHeader(header).getTime();
+      }
+      catch(Exception e) {
+        // Invalid dates, such as "0", mean that the image has already expired
+        validators.expirationTimeInMs = 0;
+      }
+    }
+
+    return validators;
   }
 
-  // AndroidHttpClient was introduced in API Level 8, but many 2.1 phones actually have it. Why this is,
-  // I have no idea. However, on these devices it is much safer to use the default HTTP client instead
-  // rather than risk throwing an exception when the class (or one of its methods) is not found.
-  private static HttpClient getHttpClient() {
-    if(Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
-      return new DefaultHttpClient();
+  // A single client is shared by all threads so that connections to the same host are kept alive and
+  // reused, rather than paying for a new TCP (and possibly SSL) handshake for every image. This is
+  // built by hand instead of using AndroidHttpClient, which was introduced in API Level 8 and does
+  // not allow the connection pool to be configured.
+  private static synchronized HttpClient getHttpClient() {
+    if(httpClient == null) {
+      final HttpParams httpParams = new BasicHttpParams();
+      HttpConnectionParams.setConnectionTimeout(httpParams, CONNECTION_TIMEOUT_IN_MS);
+      HttpConnectionParams.setSoTimeout(httpParams, CONNECTION_TIMEOUT_IN_MS);
+      HttpConnectionParams.setSocketBufferSize(httpParams, DEFAULT_BUFFER_SIZE);
+      HttpProtocolParams.setVersion(httpParams, HttpVersion.HTTP_1_1);
+      HttpProtocolParams.setUserAgent(httpParams, getUserAgent());
+      // Redirects are followed manually in loadImage()
+      HttpClientParams.setRedirecting(httpParams, false);
+
+      // Each download thread uses at most one connection at a time, and the timestamp checker needs
+      // one more. Since the number of active download threads never exceeds the maximum pool size,
+      // this lets every thread hit the same host at once without waiting for a connection.
+      final int maxConnections = DownloadThreadPool.getMaxThreads() + 1;
+      ConnManagerParams.setMaxConnectionsPerRoute(httpParams, new ConnPerRouteBean(maxConnections));
+      ConnManagerParams.setMaxTotalConnections(httpParams, maxConnections * 2);
+
+      final SchemeRegistry schemeRegistry = new SchemeRegistry();
+      schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+      schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+      final ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(httpParams, schemeRegistry);
+      httpClient = new DefaultHttpClient(connectionManager, httpParams);
     }
-    else {
-      return AndroidHttpClient.newInstance(getUserAgent());
+    return httpClient;
+  }
+
+  /** Close all pooled connections. A new client will be created by the next request. */
+  public static synchronized void shutdown() {
+    HostCircuitBreaker.reset();
+    if(httpClient != null) {
+      httpClient.getConnectionManager().shutdown();
+      httpClient = null;
     }
   }
 
@@ -250,4 +588,194 @@ public class ImageDownloader {
     }
     return userAgent;
   }
+
+  /**
+   * An interrupted download, which is kept in {@link ImageCache#getPartialFile(Context, String)}. The
+   * validator needed to resume it is saved next to it, since the server must be asked to send the
+   * whole image instead if it has changed since. Partial files are only used while holding the image's
+   * {@link DownloadThreadPool.ActiveDownload}, which is never held by more than one thread.
+   */
+  private static final class PartialDownload {
+    private static final String VALIDATOR_FILE_SUFFIX = ".range";
+
+    final File file;
+    final String rangeValidator;
+
+    private PartialDownload(File file, String rangeValidator) {
+      this.file = file;
+      this.rangeValidator = rangeValidator;
+    }
+
+    /**
+     * Find the partial download of an image.
+     * @param context Context used for getting app's package name
+     * @param imageKey Image key
+     * @return Partial download, or null if there is none which can be resumed
+     */
+    static PartialDownload find(Context context, String imageKey) {
+      final File file = ImageCache.getPartialFile(context, imageKey);
+      if(!file.exists()) {
+        return null;
+      }
+      final File validatorFile = getValidatorFile(file);
+      final String rangeValidator = readValidator(validatorFile);
+      if(rangeValidator == null || file.length() == 0) {
+        file.delete();
+        validatorFile.delete();
+        return null;
+      }
+      return new PartialDownload(file, rangeValidator);
+    }
+
+    /**
+     * Save the validator for a download which is about to be written to the partial file.
+     * @param context Context used for getting app's package name
+     * @param imageKey Image key
+     * @param rangeValidator Validator to send in the If-Range header when resuming
+     * @return Partial download, or null if the validator could not be saved
+     */
+    static PartialDownload create(Context context, String imageKey, String rangeValidator) {
+      final File file = ImageCache.getPartialFile(context, imageKey);
+      ImageCache.createParentDirectory(file);
+      Writer writer = null;
+      try {
+        writer = new OutputStreamWriter(new FileOutputStream(getValidatorFile(file)), "UTF-8");
+        writer.write(rangeValidator);
+        return new PartialDownload(file, rangeValidator);
+      }
+      catch(IOException e) {
+        LogWrapper.logException(e);
+        return null;
+      }
+      finally {
+        if(writer != null) {
+          try {
+            writer.close();
+          }
+          catch(IOException e) {
+            LogWrapper.logException(e);
+          }
+        }
+      }
+    }
+
+    /** Delete the validator once the partial file has been moved into the cache. */
+    static void deleteValidator(Context context, String imageKey) {
+      getValidatorFile(ImageCache.getPartialFile(context, imageKey)).delete();
+    }
+
+    void delete() {
+      file.delete();
+      getValidatorFile(file).delete();
+    }
+
+    private static File getValidatorFile(File file) {
+      return new File(file.getParentFile(), file.getName() + VALIDATOR_FILE_SUFFIX);
+    }
+
+    private static String readValidator(File validatorFile) {
+      if(!validatorFile.exists()) {
+        return null;
+      }
+      Reader reader = null;
+      try {
+        reader = new InputStreamReader(new FileInputStream(validatorFile), "UTF-8");
+        final StringBuilder stringBuilder = new StringBuilder();
+        final char[] buffer = new char[256];
+        int charsRead;
+        while((charsRead = reader.read(buffer)) > 0) {
+          stringBuilder.append(buffer, 0, charsRead);
+        }
+        return stringBuilder.length() > 0 ? stringBuilder.toString() : null;
+      }
+      catch(IOException e) {
+        LogWrapper.logException(e);
+        return null;
+      }
+      finally {
+        if(reader != null) {
+          try {
+            reader.close();
+          }
+          catch(IOException e) {
+            LogWrapper.logException(e);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Stream which writes everything read from it to another stream. Skipped bytes are read as well,
+   * since the copy must be complete.
+   */
+  private static final class TeeInputStream extends FilterInputStream {
+    private final OutputStream outputStream;
+    private long bytesRead = 0;
+
+    TeeInputStream(InputStream inputStream, OutputStream outputStream) {
+      super(inputStream);
+      this.outputStream = outputStream;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int result = super.read();
+      if(result >= 0) {
+        outputStream.write(result);
+        bytesRead++;
+      }
+      return result;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      final int result = super.read(buffer, offset, length);
+      if(result > 0) {
+        outputStream.write(buffer, offset, result);
+        bytesRead += result;
+      }
+      return result;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+      final byte[] buffer = new byte[(int)Math.min(byteCount, DEFAULT_BUFFER_SIZE)];
+      long skipped = 0;
+      while(skipped < byteCount) {
+        final int result = read(buffer, 0, (int)Math.min(byteCount - skipped, buffer.length));
+        if(result <= 0) {
+          break;
+        }
+        skipped += result;
+      }
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+      throw new IOException("mark/reset not supported");
+    }
+
+    /** Read the rest of the stream, so that all of it is written to the output stream. */
+    void drain() throws IOException {
+      final byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+      //noinspection StatementWithEmptyBody
+      while(read(buffer, 0, buffer.length) >= 0) {
+      }
+    }
+
+    long getBytesRead() {
+      return bytesRead;
+    }
+  }
 }
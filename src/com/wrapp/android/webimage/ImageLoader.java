@@ -22,9 +22,13 @@
 package com.wrapp.android.webimage;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
+import java.lang.ref.WeakReference;
 import java.net.URL;
+import java.util.Collection;
+import java.util.WeakHashMap;
 
 public class ImageLoader {
   // Static singleton instance
@@ -32,9 +36,13 @@ public class ImageLoader {
 
   // Worker threads for different tasks, ordered from fast -> slow
   private RequestRouterThread requestRouterThread;
-  private FileLoaderThread fileLoaderThread;
+  private FileLoaderThreadPool fileLoaderThreadPool;
   private CheckTimestampThread checkTimestampThread;
   private DownloadThreadPool downloadThreadPool;
+  // While paused, requests are queued but no images are decoded or downloaded
+  private static volatile boolean isPaused = false;
+  private static final WeakHashMap<ImageRequest.Listener, UpdateCheckListener> updateCheckListeners =
+    new WeakHashMap<ImageRequest.Listener, UpdateCheckListener>();
 
   public static ImageLoader getInstance(Context context) {
     if(staticInstance == null) {
@@ -44,8 +52,9 @@ public class ImageLoader {
   }
 
   private ImageLoader(final Context context) {
-    fileLoaderThread = FileLoaderThread.getInstance();
-    fileLoaderThread.start();
+    ImageCache.initialize(context);
+    fileLoaderThreadPool = FileLoaderThreadPool.getInstance();
+    fileLoaderThreadPool.start();
     checkTimestampThread = CheckTimestampThread.getInstance();
     checkTimestampThread.start();
     downloadThreadPool = DownloadThreadPool.getInstance();
@@ -54,15 +63,208 @@ public class ImageLoader {
     requestRouterThread.start();
   }
 
+  /**
+   * Listener for prefetched images, which nobody is waiting for. Each prefetch request needs its own
+   * listener, since requests from the same listener replace each other in the queues.
+   */
+  static final class PrefetchListener implements ImageRequest.Listener {
+    public void onBitmapLoaded(RequestResponse requestResponse) {
+    }
+
+    public void onBitmapLoadError(String message) {
+    }
+
+    public void onBitmapLoadCancelled() {
+    }
+  }
+
+  /**
+   * Load images into the caches at the lowest priority, so that they are ready when they are needed.
+   * @param context Context used for getting app's package name
+   * @param imageUrls Images to load
+   * @param decode True to also decode the images into the memory cache, false to only download them
+   * @param options Options which the images will be loaded with later, or null
+   * @param targetWidth Target width which the images will be loaded with later, or 0
+   * @param targetHeight Target height which the images will be loaded with later, or 0
+   */
+  static void prefetch(final Context context, Collection<URL> imageUrls, boolean decode, BitmapFactory.Options options,
+                       int targetWidth, int targetHeight) {
+    for(URL imageUrl : imageUrls) {
+      if(imageUrl == null) {
+        continue;
+      }
+
+      final ImageRequest request = new ImageRequest(context, imageUrl, new PrefetchListener(), options, targetWidth, targetHeight);
+      request.priority = ImageRequest.Priority.PREFETCH;
+      request.downloadOnly = !decode;
+      load(request);
+    }
+  }
+
   public static void load(final Context context, URL imageUrl, ImageRequest.Listener listener, BitmapFactory.Options options) {
-    final ImageLoader instance = getInstance(context);
-    instance.requestRouterThread.addTask(new ImageRequest(context, imageUrl, listener, options));
+    load(new ImageRequest(context, imageUrl, listener, options));
+  }
+
+  static void load(final ImageRequest request) {
+    final ImageRequest.Listener listener = request.listener;
+    // Images which have been decoded recently are returned right away without involving any of the
+    // worker threads, which is what happens most of the time when scrolling back and forth in a list.
+    final Bitmap bitmap = getFromMemoryCache(request);
+    if(bitmap != null) {
+      try {
+        BitmapPool.onBitmapDelivered(listener, bitmap);
+        listener.onBitmapLoaded(new RequestResponse(bitmap, request));
+      }
+      finally {
+        BitmapPool.release(bitmap);
+      }
+      checkForUpdate(request);
+      return;
+    }
+
+    final ImageLoader instance = getInstance(request.context);
+    instance.downloadThreadPool.onRequestAdded(request);
+    instance.requestRouterThread.addTask(request);
+  }
+
+  /**
+   * Get the bitmap for a request from the memory cache. If it is there, the request takes the place of
+   * whatever else the listener has asked for, just like a request which goes through the queues: any
+   * older requests from the listener are cancelled, and downloads which nobody else is waiting for
+   * are aborted.
+   * @param request Request to look up
+   * @return Bitmap, retained in the {@link BitmapPool}, which the caller must release. Null if the
+   * image is not in the memory cache.
+   */
+  static Bitmap getFromMemoryCache(ImageRequest request) {
+    if(request.listener == null) {
+      return null;
+    }
+
+    final Bitmap bitmap = MemoryCache.getAndRetain(request.memoryCacheKey);
+    final ImageLoader imageLoader = staticInstance;
+    if(bitmap != null && imageLoader != null) {
+      // If the listener was waiting for another image which is being downloaded right now, that
+      // download may no longer be needed
+      imageLoader.downloadThreadPool.onRequestAdded(request);
+      imageLoader.requestRouterThread.supersede(request);
+      imageLoader.fileLoaderThreadPool.supersede(request);
+      imageLoader.downloadThreadPool.supersede(request);
+    }
+    return bitmap;
+  }
+
+  /**
+   * Listener for checking an image which was shown from the memory cache for changes on the server.
+   * The check goes through the queues under this listener rather than the caller's, so that it can
+   * never replace or cancel the caller's own requests. If the image has changed, the new version is
+   * passed on to the caller, as long as that is still the image it wants.
+   */
+  static final class UpdateCheckListener implements ImageRequest.Listener {
+    // Weak, since the check listeners are kept in a map which must not keep their callers alive
+    private final WeakReference<ImageRequest.Listener> listenerReference;
+
+    UpdateCheckListener(ImageRequest.Listener listener) {
+      this.listenerReference = new WeakReference<ImageRequest.Listener>(listener);
+    }
+
+    public void onBitmapLoaded(RequestResponse requestResponse) {
+      final ImageRequest.Listener listener = listenerReference.get();
+      final ImageLoader imageLoader = staticInstance;
+      final ImageRequest checkRequest = requestResponse.originalRequest;
+      final Bitmap bitmap = requestResponse.bitmapReference.get();
+      if(listener == null || imageLoader == null || bitmap == null ||
+        !imageLoader.requestRouterThread.isLatestImage(listener, checkRequest.imageUrl)) {
+        return;
+      }
+
+      final ImageRequest request = new ImageRequest(checkRequest.context, checkRequest.imageUrl, listener,
+        checkRequest.loadOptions, checkRequest.targetWidth, checkRequest.targetHeight);
+      BitmapPool.onBitmapDelivered(listener, bitmap);
+      listener.onBitmapLoaded(new RequestResponse(bitmap, request));
+    }
+
+    public void onBitmapLoadError(String message) {
+    }
+
+    public void onBitmapLoadCancelled() {
+    }
+  }
+
+  /**
+   * Have the image for a request which was answered from the memory cache checked for changes on the
+   * server, if it has not been checked for a while. Only the timestamp lookup is made here, the
+   * check itself is made in the background.
+   * @param request Request which got its bitmap from the memory cache
+   */
+  static void checkForUpdate(ImageRequest request) {
+    final ImageLoader imageLoader = staticInstance;
+    if(imageLoader == null || request.listener == null || !ImageCache.isRecheckNeeded(request.context, request.imageKey)) {
+      return;
+    }
+
+    // Reusing the check listener means that a listener never has more than one check queued
+    UpdateCheckListener checkListener;
+    synchronized(updateCheckListeners) {
+      checkListener = updateCheckListeners.get(request.listener);
+      if(checkListener == null) {
+        checkListener = new UpdateCheckListener(request.listener);
+        updateCheckListeners.put(request.listener, checkListener);
+      }
+    }
+    final ImageRequest checkRequest = new ImageRequest(request.context, request.imageUrl, checkListener,
+      request.loadOptions, request.targetWidth, request.targetHeight);
+    imageLoader.checkTimestampThread.addTask(checkRequest);
+  }
+
+  /**
+   * Change the priority of a listener's pending request. The request may be waiting in any of the
+   * queues, so all of them are updated.
+   * @param request Latest request made by the listener
+   * @param priority New priority
+   */
+  static void updatePriority(ImageRequest request, ImageRequest.Priority priority) {
+    request.priority = priority;
+    final ImageLoader imageLoader = staticInstance;
+    if(imageLoader == null || request.listener == null) {
+      return;
+    }
+
+    // The request is only in one of the queues at a time, so stop looking once it has been found
+    if(!imageLoader.requestRouterThread.updatePriority(request.listener, priority) &&
+      !imageLoader.fileLoaderThreadPool.updatePriority(request.listener, priority)) {
+      imageLoader.downloadThreadPool.updatePriority(request.listener, priority);
+    }
+  }
+
+  static boolean isPaused() {
+    return isPaused;
+  }
+
+  public static void pause() {
+    LogWrapper.logMessage("Pausing image loading");
+    isPaused = true;
+  }
+
+  public static void resume() {
+    if(!isPaused) {
+      return;
+    }
+
+    LogWrapper.logMessage("Resuming image loading");
+    isPaused = false;
+    final ImageLoader imageLoader = staticInstance;
+    if(imageLoader != null) {
+      imageLoader.fileLoaderThreadPool.wakeUp();
+      imageLoader.checkTimestampThread.wakeUp();
+      imageLoader.downloadThreadPool.wakeUp();
+    }
   }
 
   public static void cancelAllRequests() {
     final ImageLoader imageLoader = getInstance(null);
     imageLoader.requestRouterThread.cancelAllRequests();
-    imageLoader.fileLoaderThread.cancelAllRequests();
+    imageLoader.fileLoaderThreadPool.cancelAllRequests();
     imageLoader.checkTimestampThread.cancelAllRequests();
     imageLoader.downloadThreadPool.cancelAllRequests();
   }
@@ -72,12 +274,14 @@ public class ImageLoader {
     final ImageLoader imageLoader = getInstance(null);
     imageLoader.requestRouterThread.shutdown();
     RequestRouterThread.staticInstance = null;
-    imageLoader.fileLoaderThread.shutdown();
-    FileLoaderThread.staticInstance = null;
+    imageLoader.fileLoaderThreadPool.shutdown();
+    FileLoaderThreadPool.staticInstance = null;
     imageLoader.checkTimestampThread.shutdown();
     CheckTimestampThread.staticInstance = null;
     imageLoader.downloadThreadPool.shutdown();
     DownloadThreadPool.staticInstance = null;
+    ImageDownloader.shutdown();
     staticInstance = null;
+    isPaused = false;
   }
 }
@@ -25,14 +25,45 @@ import android.content.Context;
 import android.graphics.BitmapFactory;
 
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class ImageRequest {
+  private static final AtomicLong nextSequenceNumber = new AtomicLong();
+
   public Context context;
   public String imageKey;
+  public String memoryCacheKey;
   public URL imageUrl;
   public Listener listener;
   public BitmapFactory.Options loadOptions;
+  // Size the image will be displayed at. When set, large images are downsampled while decoding.
+  public int targetWidth;
+  public int targetHeight;
   public boolean forceDownload = false;
+  // Only make sure that the image is in the file cache, without decoding it
+  public boolean downloadOnly = false;
+  // May be changed by the listener while the request is on its way through the queues
+  public volatile Priority priority = Priority.VISIBLE;
+  // Increases with each request made, so that the queues can tell which of two requests is newer
+  final long sequenceNumber = nextSequenceNumber.incrementAndGet();
+  // Failed download attempts so far, and the earliest time to try again, see DownloadThreadPool.retryLater()
+  int downloadAttempts = 0;
+  long notBeforeTimeInMs = 0;
+
+  /**
+   * Requests are processed in the order of these priorities, from highest to lowest. Within each
+   * priority, requests are processed in the order they were made.
+   */
+  public enum Priority {
+    // Images for views which are currently on screen
+    VISIBLE,
+    // Images for views which are about to be shown, or have just been hidden
+    NEAR_VISIBLE,
+    // Images which nobody is waiting for yet
+    PREFETCH,
+    // Checking if cached images have changed on the server
+    REVALIDATE,
+  }
 
   public interface Listener {
     public void onBitmapLoaded(final RequestResponse requestResponse);
@@ -40,11 +71,28 @@ public final class ImageRequest {
     public void onBitmapLoadCancelled();
   }
 
+  /**
+   * Listeners which implement this interface get low resolution previews of images while they are
+   * being downloaded, if progressive loading is enabled with {@link WebImage#setProgressiveLoading(boolean)}.
+   * Previews are sent from a background thread, and may arrive after the image has been loaded.
+   */
+  public interface ProgressiveListener extends Listener {
+    public void onBitmapPreview(final RequestResponse requestResponse);
+  }
+
   public ImageRequest(final Context context, URL imageUrl, Listener listener, BitmapFactory.Options options) {
+    this(context, imageUrl, listener, options, 0, 0);
+  }
+
+  public ImageRequest(final Context context, URL imageUrl, Listener listener, BitmapFactory.Options options,
+                      int targetWidth, int targetHeight) {
     this.context = context;
     this.imageKey = ImageCache.getCacheKeyForUrl(imageUrl);
+    this.memoryCacheKey = MemoryCache.getCacheKey(imageKey, options, targetWidth, targetHeight);
     this.imageUrl = imageUrl;
     this.listener = listener;
     this.loadOptions = options;
+    this.targetWidth = targetWidth;
+    this.targetHeight = targetHeight;
   }
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2012 Bohemian Wrappsody AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.wrapp.android.webimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of decoded bitmaps which sits in front of the file cache. The cache is bounded by
+ * the total size of the bitmaps' pixel data rather than by the number of entries, and the least
+ * recently used bitmaps are evicted first when the cache grows too large.
+ */
+public class MemoryCache {
+  // Use up to 1/8th of the app's heap for bitmaps by default, which leaves plenty of room for the
+  // app itself while still holding a few screens worth of thumbnails.
+  private static final int DEFAULT_HEAP_FRACTION = 8;
+  private static final char KEY_SEPARATOR = ':';
+
+  private static final LinkedHashMap<String, Entry> bitmaps = new LinkedHashMap<String, Entry>(32, 0.75f, true);
+  private static long maxSizeInBytes = Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION;
+  private static long currentSizeInBytes = 0;
+
+  // Remember the size of each bitmap when it is added, since a bitmap which has been recycled
+  // can no longer be asked about its size.
+  private static final class Entry {
+    final Bitmap bitmap;
+    final long sizeInBytes;
+
+    Entry(Bitmap bitmap) {
+      this.bitmap = bitmap;
+      this.sizeInBytes = getBitmapSize(bitmap);
+    }
+  }
+
+  /**
+   * Calculate the key used to store a decoded bitmap. The same image decoded with different options
+   * will produce different bitmaps, so the options which affect the outcome are part of the key.
+   * @param imageKey Key for the image, see {@link ImageCache#getCacheKeyForUrl(java.net.URL)}
+   * @param options Options used to decode the image, or null
+   * @param targetWidth Target width the image is downsampled to, or 0
+   * @param targetHeight Target height the image is downsampled to, or 0
+   * @return Memory cache key
+   */
+  public static String getCacheKey(String imageKey, BitmapFactory.Options options, int targetWidth, int targetHeight) {
+    if(options == null && targetWidth <= 0 && targetHeight <= 0) {
+      return imageKey;
+    }
+
+    StringBuilder keyBuilder = new StringBuilder(imageKey.length() + 24);
+    keyBuilder.append(imageKey);
+    if(options != null) {
+      keyBuilder.append(KEY_SEPARATOR).append(options.inSampleSize);
+      if(options.inPreferredConfig != null) {
+        keyBuilder.append(KEY_SEPARATOR).append(options.inPreferredConfig.name());
+      }
+    }
+    if(targetWidth > 0 || targetHeight > 0) {
+      keyBuilder.append(KEY_SEPARATOR).append(targetWidth).append('x').append(targetHeight);
+    }
+    return keyBuilder.toString();
+  }
+
+  public static Bitmap get(String key) {
+    synchronized(bitmaps) {
+      final Entry entry = bitmaps.get(key);
+      if(entry == null) {
+        return null;
+      }
+      else if(entry.bitmap.isRecycled()) {
+        // Someone has recycled this bitmap behind our backs, so it can't be used anymore
+        removeEntry(key);
+        return null;
+      }
+      return entry.bitmap;
+    }
+  }
+
+  /**
+   * Get a bitmap from the cache and take a reference to it in the {@link BitmapPool}, so that it can't
+   * be reused for another image if it gets evicted before the caller has started using it. The
+   * caller must release the bitmap when done with it.
+   * @param key Memory cache key
+   * @return Retained bitmap, or null if not cached
+   */
+  static Bitmap getAndRetain(String key) {
+    synchronized(bitmaps) {
+      final Bitmap bitmap = get(key);
+      BitmapPool.retain(bitmap);
+      return bitmap;
+    }
+  }
+
+  public static void put(String key, Bitmap bitmap) {
+    if(bitmap == null) {
+      return;
+    }
+
+    final Entry entry = new Entry(bitmap);
+    synchronized(bitmaps) {
+      if(entry.sizeInBytes > maxSizeInBytes) {
+        // Caching this bitmap would evict everything else, which is not worth it
+        return;
+      }
+
+      BitmapPool.retain(bitmap);
+      final Entry previousEntry = bitmaps.put(key, entry);
+      if(previousEntry != null) {
+        currentSizeInBytes -= previousEntry.sizeInBytes;
+        BitmapPool.release(previousEntry.bitmap);
+      }
+      currentSizeInBytes += entry.sizeInBytes;
+      trimToSize(maxSizeInBytes);
+    }
+  }
+
+  /**
+   * Remove all decoded versions of an image from the cache.
+   * @param imageKey Key for the image, see {@link ImageCache#getCacheKeyForUrl(java.net.URL)}
+   */
+  public static void remove(String imageKey) {
+    synchronized(bitmaps) {
+      Iterator<Map.Entry<String, Entry>> iterator = bitmaps.entrySet().iterator();
+      while(iterator.hasNext()) {
+        Map.Entry<String, Entry> entry = iterator.next();
+        final String key = entry.getKey();
+        if(key.startsWith(imageKey) &&
+          (key.length() == imageKey.length() || key.charAt(imageKey.length()) == KEY_SEPARATOR)) {
+          currentSizeInBytes -= entry.getValue().sizeInBytes;
+          iterator.remove();
+          BitmapPool.release(entry.getValue().bitmap);
+        }
+      }
+    }
+  }
+
+  public static void clear() {
+    synchronized(bitmaps) {
+      for(Entry entry : bitmaps.values()) {
+        BitmapPool.release(entry.bitmap);
+      }
+      bitmaps.clear();
+      currentSizeInBytes = 0;
+    }
+  }
+
+  public static long getMaxSizeInBytes() {
+    return maxSizeInBytes;
+  }
+
+  public static void setMaxSizeInBytes(long value) {
+    synchronized(bitmaps) {
+      maxSizeInBytes = value;
+      trimToSize(maxSizeInBytes);
+    }
+  }
+
+  private static void trimToSize(long sizeInBytes) {
+    // Iteration order of an access-ordered LinkedHashMap is least recently used first
+    Iterator<Map.Entry<String, Entry>> iterator = bitmaps.entrySet().iterator();
+    while(currentSizeInBytes > sizeInBytes && iterator.hasNext()) {
+      Map.Entry<String, Entry> entry = iterator.next();
+      currentSizeInBytes -= entry.getValue().sizeInBytes;
+      iterator.remove();
+      BitmapPool.release(entry.getValue().bitmap);
+    }
+  }
+
+  private static void removeEntry(String key) {
+    final Entry entry = bitmaps.remove(key);
+    if(entry != null) {
+      currentSizeInBytes -= entry.sizeInBytes;
+      BitmapPool.release(entry.bitmap);
+    }
+  }
+
+  private static long getBitmapSize(Bitmap bitmap) {
+    // Bitmap.getByteCount() is only available on API level 12 and above
+    return (long)bitmap.getRowBytes() * bitmap.getHeight();
+  }
+}
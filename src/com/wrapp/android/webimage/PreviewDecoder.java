@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2012 Bohemian Wrappsody AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.wrapp.android.webimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Decodes low resolution previews of an image while it is being downloaded, and passes them to a
+ * {@link ImageRequest.ProgressiveListener}. The first preview is the thumbnail embedded in the image's
+ * EXIF data, if it has one, and after that the part of the image which has arrived so far is decoded
+ * every now and then. Baseline JPEGs fill in from the top, while progressive JPEGs get sharper.
+ */
+class PreviewDecoder {
+  private static final long MIN_PREVIEW_INTERVAL_IN_MS = 750;
+  private static final long MIN_BYTES_BETWEEN_PREVIEWS = 16 * 1024;
+  // EXIF data, thumbnail included, must fit in the first 64kB of a JPEG file
+  private static final long EXIF_HEADER_SIZE = 64 * 1024;
+  // Previews are decoded at a quarter of the size the image will be shown at, which is plenty for
+  // something that will be replaced within seconds
+  private static final int PREVIEW_SAMPLE_FACTOR = 4;
+  // Don't bother with a preview when the rest of the image is about to arrive anyway
+  private static final int MAX_PREVIEW_PROGRESS_PERCENT = 90;
+
+  private final ImageRequest request;
+  private final ImageRequest.ProgressiveListener listener;
+  private final File file;
+  private final OutputStream outputStream;
+  private boolean hasCheckedExifThumbnail = false;
+  private long lastPreviewTimeInMs;
+  private long lastPreviewBytes = 0;
+  private int previewSampleSize = 0;
+
+  PreviewDecoder(ImageRequest request, ImageRequest.ProgressiveListener listener, File file, OutputStream outputStream) {
+    this.request = request;
+    this.listener = listener;
+    this.file = file;
+    this.outputStream = outputStream;
+    this.lastPreviewTimeInMs = System.currentTimeMillis();
+  }
+
+  /**
+   * Get a preview decoder for a request, if the request wants previews.
+   * @param request Request which the image is downloaded for, or null
+   * @param file File which the image is being downloaded to
+   * @param outputStream Stream which is writing to the file
+   * @return Preview decoder, or null if no previews should be made
+   */
+  static PreviewDecoder forRequest(ImageRequest request, File file, OutputStream outputStream) {
+    if(request == null || request.downloadOnly || !ImageDownloader.getProgressiveLoading()) {
+      return null;
+    }
+    final ImageRequest.Listener listener = request.listener;
+    if(!(listener instanceof ImageRequest.ProgressiveListener)) {
+      return null;
+    }
+    return new PreviewDecoder(request, (ImageRequest.ProgressiveListener)listener, file, outputStream);
+  }
+
+  /**
+   * Called after each chunk of the image has been written to the file.
+   * @param totalBytesRead Number of bytes downloaded so far
+   * @param contentSize Size of the whole image, or a negative value if not known
+   * @throws IOException If the file could not be flushed
+   */
+  void onProgress(long totalBytesRead, long contentSize) throws IOException {
+    final long now = System.currentTimeMillis();
+    if(now - lastPreviewTimeInMs < MIN_PREVIEW_INTERVAL_IN_MS || totalBytesRead - lastPreviewBytes < MIN_BYTES_BETWEEN_PREVIEWS) {
+      return;
+    }
+    else if(contentSize > 0 && totalBytesRead * 100 / contentSize >= MAX_PREVIEW_PROGRESS_PERCENT) {
+      return;
+    }
+    else if(request.listener != listener) {
+      // Cancelled
+      return;
+    }
+
+    outputStream.flush();
+    Bitmap preview = null;
+    if(!hasCheckedExifThumbnail && totalBytesRead >= Math.min(EXIF_HEADER_SIZE, contentSize > 0 ? contentSize : EXIF_HEADER_SIZE)) {
+      hasCheckedExifThumbnail = true;
+      preview = decodeExifThumbnail();
+    }
+    if(preview == null) {
+      preview = decodePartialImage();
+    }
+
+    lastPreviewTimeInMs = System.currentTimeMillis();
+    lastPreviewBytes = totalBytesRead;
+    if(preview != null) {
+      LogWrapper.logMessage("Showing preview of " + request.imageUrl + " after " + totalBytesRead + " bytes");
+      listener.onBitmapPreview(new RequestResponse(preview, request));
+    }
+  }
+
+  private Bitmap decodeExifThumbnail() {
+    try {
+      final ExifInterface exifInterface = new ExifInterface(file.getAbsolutePath());
+      if(exifInterface.hasThumbnail()) {
+        final byte[] thumbnail = exifInterface.getThumbnail();
+        if(thumbnail != null) {
+          return BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+        }
+      }
+    }
+    catch(Exception e) {
+      // Not a JPEG, or the EXIF data is broken. Either way, there is no thumbnail.
+      LogWrapper.logMessage("Could not read EXIF thumbnail for " + request.imageUrl);
+    }
+    return null;
+  }
+
+  private Bitmap decodePartialImage() {
+    if(previewSampleSize == 0) {
+      final BitmapFactory.Options boundsOptions = new BitmapFactory.Options();
+      boundsOptions.inJustDecodeBounds = true;
+      BitmapFactory.decodeFile(file.getAbsolutePath(), boundsOptions);
+      if(boundsOptions.outWidth <= 0 || boundsOptions.outHeight <= 0) {
+        // The header hasn't arrived yet
+        return null;
+      }
+
+      final int targetWidth = request.targetWidth > 0 ? request.targetWidth : boundsOptions.outWidth;
+      final int targetHeight = request.targetHeight > 0 ? request.targetHeight : boundsOptions.outHeight;
+      previewSampleSize = BitmapDecoder.calculateSampleSize(boundsOptions.outWidth, boundsOptions.outHeight,
+        Math.max(targetWidth / PREVIEW_SAMPLE_FACTOR, 1), Math.max(targetHeight / PREVIEW_SAMPLE_FACTOR, 1));
+    }
+
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inSampleSize = previewSampleSize;
+    options.inPreferredConfig = Bitmap.Config.RGB_565;
+    try {
+      return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    }
+    catch(OutOfMemoryError e) {
+      // A preview is not worth crashing for
+      LogWrapper.logMessage("Out of memory while decoding preview of " + request.imageUrl);
+      return null;
+    }
+  }
+}
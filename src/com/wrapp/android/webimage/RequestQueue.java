@@ -0,0 +1,499 @@
+/*
+ * Copyright (c) 2012 Bohemian Wrappsody AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.wrapp.android.webimage;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * Priority queue of image requests which is indexed by listener. Requests are taken in order of
+ * their {@link ImageRequest.Priority}, and in FIFO order within each priority. It is quite common
+ * that a listener will request multiple URL's, especially when a ListView is scrolling quickly, and
+ * only the latest URL requested by a listener is kept in the queue. Thanks to the index, adding,
+ * removing, reprioritizing and checking requests are all constant time operations, so the lock on
+ * the queue is only ever held for a very short time.
+ *
+ * A queue can also be scheduled by host, so that requests for a slow host can't take up all of the
+ * threads sharing the queue. Within each priority, the host which was served least recently goes
+ * first, and hosts which already have the maximum number of requests in progress are skipped. Threads
+ * are left idle rather than going over the limit, so that they are free for requests for other hosts
+ * which may come in at any moment, unless the queue has been told to let busy hosts borrow idle
+ * threads. This means walking the queue when polling, which is fine for the download queue since downloads take
+ * far longer than that anyway.
+ *
+ * Requests which are waiting to be retried stay in the queue, but are skipped until their
+ * {@link ImageRequest#notBeforeTimeInMs} has passed.
+ */
+class RequestQueue {
+  private static final ImageRequest.Priority[] PRIORITIES = ImageRequest.Priority.values();
+  // Forget about hosts which haven't been served for a while, rather than remembering all hosts forever
+  private static final int MAX_TRACKED_HOSTS = 64;
+
+  private static final class Node {
+    ImageRequest request;
+    // Kept separately from the request since cancelled requests have their listener set to null
+    ImageRequest.Listener listener;
+    ImageRequest.Priority priority;
+    Node previous;
+    Node next;
+  }
+
+  // Doesn't hold the request itself, since that would keep the listener from being garbage collected
+  private static final class LatestRequest {
+    long sequenceNumber;
+    URL imageUrl;
+  }
+
+  private final HashMap<ImageRequest.Listener, Node> listenerIndex = new HashMap<ImageRequest.Listener, Node>();
+  // The newest request which has been added to the queue for each listener. When several threads
+  // share this queue, an older request may finish after a newer one for the same listener, and this is
+  // used to throw away the older result. It is kept after the newest request has finished, for as long
+  // as the listener is around, since older requests may still be in progress.
+  private final WeakHashMap<ImageRequest.Listener, LatestRequest> latestRequests = new WeakHashMap<ImageRequest.Listener, LatestRequest>();
+  // One list for each priority, indexed by the priority's ordinal
+  private final Node[] heads = new Node[PRIORITIES.length];
+  private final Node[] tails = new Node[PRIORITIES.length];
+  private int size;
+
+  private final boolean isScheduledByHost;
+  private int maxActiveRequestsPerHost = 0;
+  private boolean isBorrowingIdleThreads = false;
+  // Number of requests taken from the queue which have not been finished yet, for each host
+  private final HashMap<String, int[]> activeRequestsPerHost = new HashMap<String, int[]>();
+  // When each host was last served, as a sequence number
+  private final HashMap<String, long[]> lastServedTimes = new HashMap<String, long[]>();
+  private long lastServedTime = 0;
+  // Earliest time when a request which was skipped by the last poll() becomes ready, or 0 if none
+  private long nextReadyTimeInMs = 0;
+
+  RequestQueue() {
+    this(false);
+  }
+
+  /**
+   * Create a queue, see the class documentation for scheduling by host.
+   * @param isScheduledByHost True to take turns between hosts
+   */
+  RequestQueue(boolean isScheduledByHost) {
+    this.isScheduledByHost = isScheduledByHost;
+  }
+
+  /**
+   * Limit the number of requests for the same host which may be in progress at once. This only
+   * applies to queues which are scheduled by host.
+   * @param value Maximum number of requests per host, or 0 for no limit
+   */
+  public synchronized void setMaxActiveRequestsPerHost(int value) {
+    maxActiveRequestsPerHost = value;
+    // Threads may be waiting for a host which is below the new limit
+    notifyAll();
+  }
+
+  /**
+   * Let hosts go over the limit from {@link #setMaxActiveRequestsPerHost(int)} when no other host has a
+   * request which is ready. Threads are then never idle while there is work, but requests for other
+   * hosts which come in later may have to wait for a slow host's requests to finish.
+   * @param value True to let busy hosts use idle threads
+   */
+  public synchronized void setBorrowingIdleThreads(boolean value) {
+    isBorrowingIdleThreads = value;
+    notifyAll();
+  }
+
+  /**
+   * Add a request to the end of the queue for its priority, see {@link #add(ImageRequest, ImageRequest.Priority)}.
+   * @param request Request to add
+   * @return The request which was dropped from the queue, or null if there was none
+   */
+  public ImageRequest add(ImageRequest request) {
+    return add(request, request.priority);
+  }
+
+  /**
+   * Add a request to the end of the queue for a priority. If the same listener already has a request
+   * in the queue, then that request is superseded by this one. The request keeps its place in line
+   * if the priority is the same, and otherwise moves to the end of the new priority's queue.
+   * @param request Request to add
+   * @param priority Priority to queue the request at
+   * @return The request which was dropped from the queue, or null if there was none. The caller
+   * should notify its listener that it has been cancelled.
+   */
+  public synchronized ImageRequest add(ImageRequest request, ImageRequest.Priority priority) {
+    final ImageRequest.Listener listener = request.listener;
+    if(listener != null) {
+      updateLatestRequest(listener, request);
+      final LatestRequest latestRequest = latestRequests.get(listener);
+      if(latestRequest.sequenceNumber > request.sequenceNumber && !latestRequest.imageUrl.equals(request.imageUrl)) {
+        // The listener has moved on to another image since this request was passed on from another
+        // queue, so it is dropped without telling the listener, which only cares about the new image
+        request.listener = null;
+        return null;
+      }
+      final Node existingNode = listenerIndex.get(listener);
+      if(existingNode != null) {
+        final ImageRequest droppedRequest;
+        if(existingNode.request.imageUrl.equals(request.imageUrl)) {
+          // Ignore duplicate requests. This is common when doing view recycling in list adapters.
+          droppedRequest = request;
+        }
+        else if(existingNode.request.sequenceNumber > request.sequenceNumber) {
+          // An older request which is being passed on from another queue
+          droppedRequest = request;
+        }
+        else {
+          // Same listener but a new URL, so use the new request instead
+          droppedRequest = existingNode.request;
+          existingNode.request = request;
+        }
+        if(existingNode.priority != priority) {
+          unlink(existingNode);
+          link(existingNode, priority);
+        }
+        return droppedRequest;
+      }
+    }
+
+    final Node node = new Node();
+    node.request = request;
+    node.listener = listener;
+    link(node, priority);
+
+    notifyAll();
+    return null;
+  }
+
+  /**
+   * Add a request to the end of the queue for its priority, unless its listener already has another
+   * request in the queue. This is used for putting requests back in the queue, which must never
+   * replace newer requests from the same listener.
+   * @param request Request to add
+   * @return True if the request was added
+   */
+  public synchronized boolean addIfAbsent(ImageRequest request) {
+    if(request.listener == null || listenerIndex.containsKey(request.listener)) {
+      return false;
+    }
+    add(request, request.priority);
+    return true;
+  }
+
+  /**
+   * Record that a listener has got the image for a request without going through this queue, for
+   * instance from the memory cache. This has the same effect as adding the request and processing it
+   * right away: the listener's request in the queue is removed, and the results of older requests
+   * which are in progress or passed on from other queues are thrown away.
+   * @param request Request which has been answered
+   * @return The request which was removed from the queue, or null if there was none. The caller
+   * should notify its listener that it has been cancelled.
+   */
+  public synchronized ImageRequest supersede(ImageRequest request) {
+    final ImageRequest.Listener listener = request.listener;
+    if(listener == null) {
+      return null;
+    }
+
+    updateLatestRequest(listener, request);
+    final Node node = listenerIndex.get(listener);
+    if(node == null || node.request.sequenceNumber > request.sequenceNumber) {
+      return null;
+    }
+    unlink(node);
+    return node.request;
+  }
+
+  /**
+   * Change the priority of the request which a listener has in the queue, if any. The request moves
+   * to the end of the queue for its new priority.
+   * @param listener Listener
+   * @param priority New priority
+   * @return True if the listener had a request in the queue
+   */
+  public synchronized boolean updatePriority(ImageRequest.Listener listener, ImageRequest.Priority priority) {
+    final Node node = listener != null ? listenerIndex.get(listener) : null;
+    if(node == null) {
+      return false;
+    }
+
+    node.request.priority = priority;
+    if(node.priority != priority) {
+      unlink(node);
+      link(node, priority);
+    }
+    return true;
+  }
+
+  /**
+   * Remove the request with the highest priority from the queue. Once the request has been processed,
+   * the caller must call {@link #finishRequest(ImageRequest)}.
+   * @return Next request, or null if the queue is empty or all requests in it are waiting to be retried
+   */
+  public synchronized ImageRequest poll() {
+    final long now = System.currentTimeMillis();
+    nextReadyTimeInMs = 0;
+    Node node = null;
+    for(int i = 0; i < heads.length && node == null; i++) {
+      node = isScheduledByHost ? selectNodeByHost(heads[i], now, true) : selectFirstReadyNode(heads[i], now);
+    }
+    if(node == null && isScheduledByHost && maxActiveRequestsPerHost > 0 && isBorrowingIdleThreads) {
+      // Only busy hosts have requests, and they may use the thread until it is needed again
+      for(int i = 0; i < heads.length && node == null; i++) {
+        node = selectNodeByHost(heads[i], now, false);
+      }
+    }
+
+    if(node != null) {
+      unlink(node);
+      if(isScheduledByHost) {
+        onHostRequestStarted(getHost(node.request));
+      }
+      return node.request;
+    }
+    return null;
+  }
+
+  /**
+   * Get how long to wait before polling again, when the last poll() only found requests which are
+   * waiting to be retried.
+   * @return Time to wait in milliseconds, or 0 to wait until the queue changes
+   */
+  public synchronized long getWaitTimeInMs() {
+    if(nextReadyTimeInMs == 0) {
+      return 0;
+    }
+    return Math.max(nextReadyTimeInMs - System.currentTimeMillis(), 1);
+  }
+
+  private Node selectFirstReadyNode(Node head, long now) {
+    for(Node node = head; node != null; node = node.next) {
+      if(isReady(node, now)) {
+        return node;
+      }
+    }
+    return null;
+  }
+
+  private boolean isReady(Node node, long now) {
+    final long notBeforeTimeInMs = node.request.notBeforeTimeInMs;
+    if(notBeforeTimeInMs <= now) {
+      return true;
+    }
+    if(nextReadyTimeInMs == 0 || notBeforeTimeInMs < nextReadyTimeInMs) {
+      nextReadyTimeInMs = notBeforeTimeInMs;
+    }
+    return false;
+  }
+
+  /**
+   * Find the first request for the least recently served host.
+   * @param head First node in a priority's list
+   * @param now Current time
+   * @param isLimited True to skip hosts which already have the maximum number of requests in progress
+   * @return Node to take, or null if there is none
+   */
+  private Node selectNodeByHost(Node head, long now, boolean isLimited) {
+    Node selectedNode = null;
+    long selectedServedTime = Long.MAX_VALUE;
+    for(Node node = head; node != null; node = node.next) {
+      if(!isReady(node, now)) {
+        continue;
+      }
+      final String host = getHost(node.request);
+      final int[] activeCount = activeRequestsPerHost.get(host);
+      if(isLimited && maxActiveRequestsPerHost > 0 && activeCount != null && activeCount[0] >= maxActiveRequestsPerHost) {
+        continue;
+      }
+
+      final long[] servedTime = lastServedTimes.get(host);
+      if(servedTime == null) {
+        // Nothing can beat a host which hasn't been served yet
+        return node;
+      }
+      else if(servedTime[0] < selectedServedTime) {
+        selectedNode = node;
+        selectedServedTime = servedTime[0];
+      }
+    }
+    return selectedNode;
+  }
+
+  private void onHostRequestStarted(String host) {
+    final int[] activeCount = activeRequestsPerHost.get(host);
+    if(activeCount == null) {
+      activeRequestsPerHost.put(host, new int[] {1});
+    }
+    else {
+      activeCount[0]++;
+    }
+
+    if(lastServedTimes.size() >= MAX_TRACKED_HOSTS && !lastServedTimes.containsKey(host)) {
+      lastServedTimes.clear();
+    }
+    final long[] servedTime = lastServedTimes.get(host);
+    if(servedTime == null) {
+      lastServedTimes.put(host, new long[] {++lastServedTime});
+    }
+    else {
+      servedTime[0] = ++lastServedTime;
+    }
+  }
+
+  private void onHostRequestFinished(String host) {
+    final int[] activeCount = activeRequestsPerHost.get(host);
+    if(activeCount == null) {
+      return;
+    }
+    if(--activeCount[0] <= 0) {
+      activeRequestsPerHost.remove(host);
+    }
+    if(maxActiveRequestsPerHost > 0 && activeCount[0] == maxActiveRequestsPerHost - 1) {
+      // Requests for this host can be taken again
+      notifyAll();
+    }
+  }
+
+  private static String getHost(ImageRequest request) {
+    final String host = request.imageUrl.getHost();
+    return host != null ? host : "";
+  }
+
+  /** Wake up all threads waiting on this queue so that they can check their state again. */
+  public synchronized void wakeUp() {
+    notifyAll();
+  }
+
+  public synchronized boolean isEmpty() {
+    return size == 0;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Mark a request taken from this queue as finished, and check if it is still wanted. If the same
+   * listener has since asked for a different URL, then the result of the finished request should be
+   * discarded.
+   * @param finishedRequest Request which was taken from this queue
+   * @return True if the result can be delivered to the listener
+   */
+  public synchronized boolean finishRequest(ImageRequest finishedRequest) {
+    if(isScheduledByHost) {
+      onHostRequestFinished(getHost(finishedRequest));
+    }
+
+    final ImageRequest.Listener listener = finishedRequest.listener;
+    if(listener == null) {
+      // The request was cancelled while being processed
+      return false;
+    }
+
+    // A newer request for the same image is as good as this one, whether or not it has finished
+    final LatestRequest latestRequest = latestRequests.get(listener);
+    return latestRequest == null || latestRequest.sequenceNumber <= finishedRequest.sequenceNumber ||
+      latestRequest.imageUrl.equals(finishedRequest.imageUrl);
+  }
+
+  /**
+   * Check if the newest request which a listener has made through this queue is for an image.
+   * @param listener Listener
+   * @param imageUrl Image URL
+   * @return True if the listener's newest request is for the image
+   */
+  public synchronized boolean isLatestImage(ImageRequest.Listener listener, URL imageUrl) {
+    final LatestRequest latestRequest = latestRequests.get(listener);
+    return latestRequest != null && latestRequest.imageUrl.equals(imageUrl);
+  }
+
+  private void updateLatestRequest(ImageRequest.Listener listener, ImageRequest request) {
+    LatestRequest latestRequest = latestRequests.get(listener);
+    if(latestRequest == null) {
+      latestRequest = new LatestRequest();
+      latestRequests.put(listener, latestRequest);
+    }
+    else if(latestRequest.sequenceNumber >= request.sequenceNumber) {
+      return;
+    }
+    latestRequest.sequenceNumber = request.sequenceNumber;
+    latestRequest.imageUrl = request.imageUrl;
+  }
+
+  /**
+   * Remove all requests from the queue.
+   * @return Requests which were removed, in priority and queue order
+   */
+  public synchronized List<ImageRequest> clear() {
+    final List<ImageRequest> removedRequests = new ArrayList<ImageRequest>(size);
+    for(int i = 0; i < heads.length; i++) {
+      for(Node node = heads[i]; node != null; node = node.next) {
+        removedRequests.add(node.request);
+      }
+      heads[i] = null;
+      tails[i] = null;
+    }
+    size = 0;
+    listenerIndex.clear();
+    return removedRequests;
+  }
+
+  private void link(Node node, ImageRequest.Priority priority) {
+    final int index = priority.ordinal();
+    node.priority = priority;
+    node.previous = tails[index];
+    if(tails[index] == null) {
+      heads[index] = node;
+    }
+    else {
+      tails[index].next = node;
+    }
+    tails[index] = node;
+    size++;
+    if(node.listener != null) {
+      listenerIndex.put(node.listener, node);
+    }
+  }
+
+  private void unlink(Node node) {
+    final int index = node.priority.ordinal();
+    if(node.previous == null) {
+      heads[index] = node.next;
+    }
+    else {
+      node.previous.next = node.next;
+    }
+    if(node.next == null) {
+      tails[index] = node.previous;
+    }
+    else {
+      node.next.previous = node.previous;
+    }
+    node.previous = null;
+    node.next = null;
+    size--;
+
+    if(node.listener != null && listenerIndex.get(node.listener) == node) {
+      listenerIndex.remove(node.listener);
+    }
+  }
+}
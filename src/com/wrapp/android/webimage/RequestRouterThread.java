@@ -41,7 +41,9 @@ public class RequestRouterThread extends TaskQueueThread {
   @Override
   protected Bitmap processRequest(ImageRequest request) {
     if(ImageCache.isImageCached(request.context, request.imageKey)) {
-      FileLoaderThread.getInstance().addTask(request);
+      if(!request.downloadOnly) {
+        FileLoaderThreadPool.getInstance().addTask(request);
+      }
     }
     else {
       DownloadThreadPool.getInstance().addTask(request);
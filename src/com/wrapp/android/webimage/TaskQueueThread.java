@@ -23,11 +23,12 @@ package com.wrapp.android.webimage;
 
 import android.graphics.Bitmap;
 
-import java.util.*;
+import java.net.URL;
+import java.util.List;
 
 public abstract class TaskQueueThread extends Thread {
   private static final long SHUTDOWN_TIMEOUT_IN_MS = 100;
-  private final Queue<ImageRequest> pendingRequests;
+  private final RequestQueue pendingRequests;
   private boolean isRunning;
 
   protected abstract Bitmap processRequest(ImageRequest request);
@@ -35,8 +36,36 @@ public abstract class TaskQueueThread extends Thread {
   protected abstract void onRequestCancelled(ImageRequest request);
 
   public TaskQueueThread(final String taskName) {
+    this(taskName, new RequestQueue());
+  }
+
+  /**
+   * Create a thread which takes its work from a queue that may be shared with other threads. Each
+   * request is processed by whichever thread gets to it first.
+   * @param taskName Thread name
+   * @param requestQueue Queue to take requests from
+   */
+  TaskQueueThread(final String taskName, final RequestQueue requestQueue) {
     super(taskName);
-    pendingRequests = new LinkedList<ImageRequest>();
+    pendingRequests = requestQueue;
+  }
+
+  /**
+   * Subclasses may override this to temporarily stop taking new requests from the queue. When this
+   * changes from false to true, the queue should be woken up with {@link RequestQueue#wakeUp()}.
+   * @return True if this thread should process requests
+   */
+  protected boolean isAcceptingRequests() {
+    return true;
+  }
+
+  /**
+   * Called after a request has been processed and its listener has been notified, whether or not the
+   * request was still valid. Subclasses may override this to clean up after processRequest().
+   * @param request Request
+   * @param bitmap Bitmap returned by processRequest(), or null
+   */
+  protected void onRequestFinished(ImageRequest request, Bitmap bitmap) {
   }
 
   @Override
@@ -46,44 +75,53 @@ public abstract class TaskQueueThread extends Thread {
     isRunning = true;
     while(isRunning) {
       synchronized(pendingRequests) {
-        while(pendingRequests.isEmpty() && isRunning) {
+        // Duplicate and outdated requests from the same listener have already been pruned when
+        // they were added to the queue, so the head of the queue is always the one to process. The
+        // queue may still have nothing to give out if it is scheduled by host and all hosts are busy.
+        request = null;
+        while(isRunning && (!isAcceptingRequests() || (request = pendingRequests.poll()) == null)) {
           try {
-            pendingRequests.wait();
+            // Requests which are waiting to be retried become ready without anyone touching the queue
+            pendingRequests.wait(isAcceptingRequests() ? pendingRequests.getWaitTimeInMs() : 0);
           }
           catch(InterruptedException e) {
             isRunning = false;
             break;
           }
         }
-
-        try {
-          request = getNextRequest(pendingRequests);
-        }
-        catch(Exception e) {
-          continue;
-        }
       }
 
       try {
-        if(request != null && request.listener != null) {
+        final ImageRequest.Listener listener = request != null ? request.listener : null;
+        if(listener != null) {
+          Bitmap bitmap = null;
           try {
-            Bitmap bitmap = processRequest(request);
-            synchronized(pendingRequests) {
-              if(isRequestStillValid(request, pendingRequests)) {
-                if(bitmap != null) {
-                  onRequestComplete(new RequestResponse(bitmap, request));
-                }
-              }
-              else {
-                LogWrapper.logMessage("Bitmap request is no longer valid: " + request.imageUrl);
-                onRequestCancelled(request);
+            bitmap = processRequest(request);
+          }
+          catch(Exception e) {
+            pendingRequests.finishRequest(request);
+            listener.onBitmapLoadError(e.getMessage());
+            continue;
+          }
+
+          try {
+            if(pendingRequests.finishRequest(request)) {
+              if(bitmap != null) {
+                onRequestComplete(new RequestResponse(bitmap, request));
               }
             }
+            else if(request.listener != null) {
+              LogWrapper.logMessage("Bitmap request is no longer valid: " + request.imageUrl);
+              onRequestCancelled(request);
+            }
           }
-          catch(Exception e) {
-            request.listener.onBitmapLoadError(e.getMessage());
+          finally {
+            onRequestFinished(request, bitmap);
           }
         }
+        else if(request != null) {
+          pendingRequests.finishRequest(request);
+        }
       }
       catch(Exception e) {
         LogWrapper.logException(e);
@@ -100,61 +138,48 @@ public abstract class TaskQueueThread extends Thread {
   }
 
   public void addTask(ImageRequest request) {
-    synchronized(pendingRequests) {
-      pendingRequests.add(request);
-      pendingRequests.notifyAll();
-    }
+    addTask(request, request.priority);
   }
 
-  private ImageRequest getNextRequest(Queue<ImageRequest> requestQueue) {
-    // Pop the first element from the pending request queue
-    ImageRequest request = requestQueue.poll();
-    if(request.listener == null) {
-      return request;
+  public void addTask(ImageRequest request, ImageRequest.Priority priority) {
+    final ImageRequest droppedRequest = pendingRequests.add(request, priority);
+    if(droppedRequest != null && droppedRequest.listener != null) {
+      droppedRequest.listener.onBitmapLoadCancelled();
     }
+  }
 
-    // Go through the list of pending requests, pruning duplicate requests and using the latest URL
-    // requested by a particular listener. It is quite common that a listener will request multiple
-    // URL's, especially when a ListView is scrolling quickly.
-    Iterator requestIterator = requestQueue.iterator();
-    while(requestIterator.hasNext()) {
-      ImageRequest checkRequest = (ImageRequest)requestIterator.next();
-      if(request.listener.equals(checkRequest.listener)) {
-        if(request.imageUrl.equals(checkRequest.imageUrl)) {
-          // Ignore duplicate requests. This is common when doing view recycling in list adapters.
-          request.listener.onBitmapLoadCancelled();
-          requestIterator.remove();
-        }
-        else {
-          // If this request in the queue was made by the same listener but is for a new URL,
-          // then use that request instead and remove it from the queue.
-          request.listener.onBitmapLoadCancelled();
-          request = checkRequest;
-          requestIterator.remove();
-        }
-      }
+  /**
+   * Tell this thread's queue that a listener has got the image for a request some other way, see
+   * {@link RequestQueue#supersede(ImageRequest)}.
+   * @param request Request which has been answered
+   */
+  public void supersede(ImageRequest request) {
+    final ImageRequest droppedRequest = pendingRequests.supersede(request);
+    if(droppedRequest != null && droppedRequest.listener != null) {
+      droppedRequest.listener.onBitmapLoadCancelled();
     }
+  }
 
-    return request;
+  /** Wake up this thread and any others sharing its queue, after isAcceptingRequests() has changed. */
+  public void wakeUp() {
+    pendingRequests.wakeUp();
   }
 
-  private boolean isRequestStillValid(ImageRequest finishedRequest, Queue<ImageRequest> requestQueue) {
-    for(ImageRequest checkRequest : requestQueue) {
-      if(finishedRequest.listener.equals(checkRequest.listener) &&
-        !finishedRequest.imageUrl.equals(checkRequest.imageUrl)) {
-        return false;
-      }
-    }
-    return true;
+  public boolean updatePriority(ImageRequest.Listener listener, ImageRequest.Priority priority) {
+    return pendingRequests.updatePriority(listener, priority);
+  }
+
+  public boolean isLatestImage(ImageRequest.Listener listener, URL imageUrl) {
+    return pendingRequests.isLatestImage(listener, imageUrl);
   }
 
   public void cancelAllRequests() {
-    synchronized(pendingRequests) {
-      for(ImageRequest request : pendingRequests) {
+    final List<ImageRequest> cancelledRequests = pendingRequests.clear();
+    for(ImageRequest request : cancelledRequests) {
+      if(request.listener != null) {
         request.listener.onBitmapLoadCancelled();
         request.listener = null;
       }
-      pendingRequests.clear();
     }
   }
 
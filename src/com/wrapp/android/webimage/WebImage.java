@@ -23,8 +23,10 @@ package com.wrapp.android.webimage;
 
 import android.content.Context;
 import android.graphics.BitmapFactory;
+import android.widget.AbsListView;
 
 import java.net.URL;
+import java.util.Collection;
 
 /** Endpoint class for all main library tasks. */
 @SuppressWarnings({"UnusedDeclaration"})
@@ -57,6 +59,63 @@ public class WebImage {
     ImageLoader.load(context, imageUrl, listener, options);
   }
 
+  /**
+   * Load an image from URL to the given listener, downsampling it to fit the size that it will be
+   * displayed at. Images which are larger than the target size are decoded with the largest power
+   * of two sample size which still leaves them at least as large as the target size. This is a
+   * non-blocking call which is run in a background thread.
+   * @param context Context used for getting app's package name
+   * @param imageUrl URL to load the image from
+   * @param listener Object which will be notified when the request is complete
+   * @param options Options to use when loading the image. See the documentation for {@link BitmapFactory.Options}
+   * for more details. Can be null. If the options specify a sample size, the image is not downsampled further.
+   * @param targetWidth Width the image will be displayed at, in pixels
+   * @param targetHeight Height the image will be displayed at, in pixels
+   */
+  public static void load(final Context context, URL imageUrl, ImageRequest.Listener listener, BitmapFactory.Options options,
+                          int targetWidth, int targetHeight) {
+    ImageLoader.load(new ImageRequest(context, imageUrl, listener, options, targetWidth, targetHeight));
+  }
+
+  /**
+   * How far images should be loaded by {@link WebImage#prefetch(Context, Collection, PrefetchLevel)}.
+   */
+  public enum PrefetchLevel {
+    // Download images to the file cache
+    DISK,
+    // Download images and decode them into the memory cache
+    MEMORY,
+  }
+
+  /**
+   * Load images into the caches ahead of time, for instance for the next page of a list which the
+   * user is likely to scroll to. Prefetching runs at a lower priority than all other requests, so it
+   * never holds up images which are being shown. This is a non-blocking call.
+   * @param context Context used for getting app's package name
+   * @param imageUrls URLs of the images to load
+   * @param level Which caches to load the images into
+   */
+  public static void prefetch(final Context context, Collection<URL> imageUrls, PrefetchLevel level) {
+    prefetch(context, imageUrls, level, null, 0, 0);
+  }
+
+  /**
+   * Load images into the caches ahead of time. When prefetching into the memory cache, the options and
+   * target size must be the same as when the images are loaded later, otherwise the decoded images
+   * will not be found. For a {@link WebImageView}, the target size is the size of the view without
+   * its padding.
+   * @param context Context used for getting app's package name
+   * @param imageUrls URLs of the images to load
+   * @param level Which caches to load the images into
+   * @param options Options which the images will be loaded with. Can be null.
+   * @param targetWidth Width which the images will be loaded with, in pixels, or 0
+   * @param targetHeight Height which the images will be loaded with, in pixels, or 0
+   */
+  public static void prefetch(final Context context, Collection<URL> imageUrls, PrefetchLevel level,
+                              BitmapFactory.Options options, int targetWidth, int targetHeight) {
+    ImageLoader.prefetch(context, imageUrls, level == PrefetchLevel.MEMORY, options, targetWidth, targetHeight);
+  }
+
   // Image Cache Operations ////////////////////////////////////////////////////////////////////////////////////////////
 
   /**
@@ -73,7 +132,8 @@ public class WebImage {
 
   /**
    * Remove old files from the file cache. The parent application should call this method once during
-   * initialization to prevent the file cache from growing too large.
+   * initialization to prevent the file cache from growing too large. This waits for the file cache's
+   * index to be loaded and deletes files, so it should be called from a background thread.
    * @param context Context used for getting app's package name
    */
   public static void clearOldCacheFiles(final Context context) {
@@ -82,7 +142,8 @@ public class WebImage {
 
   /**
    * Remove cached files older than this many seconds from the file cache. Call with 0 to remove all
-   * files in the cache.
+   * files in the cache. Like {@link #clearOldCacheFiles(android.content.Context)}, this should be called
+   * from a background thread.
    * @param context Context used for getting app's package name
    * @param cacheAgeInSec Maximum age of file, in seconds
    */
@@ -91,7 +152,17 @@ public class WebImage {
   }
 
   /**
-   * Remove a single image from the disk cache
+   * Remove all decoded images from the memory cache. Apps may wish to call this from their
+   * activity's onLowMemory() method.
+   */
+  public static void clearMemoryCache() {
+    MemoryCache.clear();
+    BitmapPool.clear();
+  }
+
+  /**
+   * Remove a single image from the disk and memory caches. This does not wait for the file cache's index
+   * to be loaded, so it may be called from the GUI thread.
    * @param context Context used for getting app's package name
    * @param imageUrl Image URL to remove
    */
@@ -124,8 +195,164 @@ public class WebImage {
     DownloadThreadPool.setMaxThreads(value);
   }
 
+  /**
+   * Set the maximum number of images which may be downloaded from the same host at once. Images from
+   * different hosts take turns, and by default, a single host can use all download threads but one,
+   * so that a slow host never holds up images from the others. The limit holds even when only one
+   * host has images waiting, unless {@link #setBorrowIdleDownloadThreads(boolean)} is enabled.
+   * @param value Number of threads, or 0 for the default
+   */
+  public static void setMaxDownloadThreadsPerHost(int value) {
+    DownloadThreadPool.setMaxThreadsPerHost(value);
+  }
+
+  /**
+   * Let a host go over the limit from {@link #setMaxDownloadThreadsPerHost(int)} while no other host
+   * has images waiting, so that no download thread is left idle. This is off by default, since images
+   * from another host which are requested a moment later then have to wait for the slow host's
+   * downloads to finish.
+   * @param value True to let a busy host use idle download threads
+   */
+  public static void setBorrowIdleDownloadThreads(boolean value) {
+    DownloadThreadPool.setBorrowIdleThreads(value);
+  }
+
+  /**
+   * Set the maximum amount of memory used to hold decoded images in the memory cache. The size of
+   * a bitmap is calculated from its pixel data, so a 100x100 image in ARGB_8888 format uses 40000
+   * bytes. By default, 1/8th of the app's maximum heap size is used. Setting this to 0 will disable
+   * the memory cache completely.
+   * @param value Maximum size, in bytes
+   */
+  public static void setMemoryCacheSize(long value) {
+    MemoryCache.setMaxSizeInBytes(value);
+  }
+
+  /**
+   * Set the maximum amount of memory used to hold bitmaps which are no longer displayed, so that
+   * their memory can be reused when decoding other images of the same size. This avoids a lot of
+   * garbage collection when scrolling through lists, but only works on Android 3.0 and above. By
+   * default, 1/16th of the app's maximum heap size is used. Setting this to 0 disables reuse.
+   * @param value Maximum size, in bytes
+   */
+  public static void setBitmapPoolSize(long value) {
+    BitmapPool.setMaxSizeInBytes(value);
+  }
+
+  /**
+   * Set the maximum amount of disk space used by the file cache. When the cache grows larger than
+   * this, the images which were used least recently are deleted. Downsampled copies of images are
+   * not counted. The default is 50MB.
+   * @param value Maximum size, in bytes
+   */
+  public static void setDiskCacheSize(long value) {
+    ImageCache.setMaxSizeInBytes(value);
+  }
+
+  /**
+   * Decode images at the same time as they are downloaded, instead of reading them back from the file
+   * cache once the download is complete. This makes images which are not cached show up sooner, at
+   * the cost of decoding on the download threads, which can then not start on the next download
+   * until the image has been decoded. The default is false.
+   * @param value True to decode images while downloading
+   */
+  public static void setDecodeWhileDownloading(boolean value) {
+    ImageDownloader.setDecodeWhileDownloading(value);
+  }
+
+  /**
+   * Show low resolution previews of images while they are being downloaded. This is mostly useful for
+   * large images on slow connections. Previews are only sent to listeners which implement
+   * {@link ImageRequest.ProgressiveListener}, such as {@link WebImageView}, and are not made when
+   * images are decoded while downloading. The default is false.
+   * @param value True to show previews
+   */
+  public static void setProgressiveLoading(boolean value) {
+    ImageDownloader.setProgressiveLoading(value);
+  }
+
+  /**
+   * Save downsampled copies of large images in the file cache. When an image is loaded with a target
+   * size (which {@link WebImageView} does automatically), then the first decode writes a smaller copy
+   * of the image to the cache, and later loads read that copy instead of the full size image. This
+   * uses some extra disk space, but makes loading thumbnails of large images much faster. Disabled
+   * by default.
+   * @param value True to save downsampled images
+   */
+  public static void setSaveDownsampledImages(boolean value) {
+    ImageCache.setSaveDownsampledImages(value);
+  }
+
+  /**
+   * Set the number of threads used for loading images from the file cache. By default, one thread
+   * is used per CPU core, up to a maximum of 4. This must be called before the first image is loaded,
+   * or after calling {@link #shutdown()}.
+   * @param value Number of threads
+   */
+  public static void setNumFileLoaderThreads(int value) {
+    FileLoaderThreadPool.setNumThreads(value);
+  }
+
   // Thread Control Operations /////////////////////////////////////////////////////////////////////////////////////////
 
+  /**
+   * Stop decoding and downloading images until {@link #resume()} is called. Requests are still queued,
+   * and images which are in the memory cache are still shown right away. This is useful while a list
+   * is being flung, when most rows are only on screen for a few milliseconds. When loading resumes,
+   * requests from views which have been reused for other images have already been dropped, and
+   * views which are still on screen go first. See {@link PauseOnScrollListener}.
+   */
+  public static void pause() {
+    ImageLoader.pause();
+  }
+
+  /** Resume loading images after {@link #pause()}. */
+  public static void resume() {
+    ImageLoader.resume();
+  }
+
+  /**
+   * Scroll listener which pauses image loading while a list is flinging, and resumes it when the list
+   * stops. Set this on a ListView or GridView with setOnScrollListener(). If the list already has a
+   * scroll listener, pass it to the constructor and it will receive all scroll events as well.
+   */
+  public static class PauseOnScrollListener implements AbsListView.OnScrollListener {
+    private final boolean pauseOnTouchScroll;
+    private final AbsListView.OnScrollListener scrollListener;
+
+    public PauseOnScrollListener() {
+      this(false, null);
+    }
+
+    /**
+     * @param pauseOnTouchScroll True to also pause while the user is dragging the list
+     * @param scrollListener Listener to forward scroll events to, or null
+     */
+    public PauseOnScrollListener(boolean pauseOnTouchScroll, AbsListView.OnScrollListener scrollListener) {
+      this.pauseOnTouchScroll = pauseOnTouchScroll;
+      this.scrollListener = scrollListener;
+    }
+
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+      if(scrollState == SCROLL_STATE_FLING || (scrollState == SCROLL_STATE_TOUCH_SCROLL && pauseOnTouchScroll)) {
+        pause();
+      }
+      else {
+        resume();
+      }
+
+      if(scrollListener != null) {
+        scrollListener.onScrollStateChanged(view, scrollState);
+      }
+    }
+
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+      if(scrollListener != null) {
+        scrollListener.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+      }
+    }
+  }
+
   /**
    * Cancel all pending requests. The parent activity should call this method when it is about
    * to be stopped or paused, or else you will waste resources by running in the background.
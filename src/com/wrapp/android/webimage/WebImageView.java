@@ -36,7 +36,7 @@ import java.net.URL;
  * ImageView successor class which can load images asynchronously from the web. This class
  * is safe to use in ListAdapters or views which may trigger many simultaneous requests.
  */
-public class WebImageView extends ImageView implements ImageRequest.Listener {
+public class WebImageView extends ImageView implements ImageRequest.ProgressiveListener {
   Handler uiHandler;
   private Listener listener;
   // Save both a Drawable and int here. If the user wants to pass a resource ID, we can load
@@ -47,6 +47,11 @@ public class WebImageView extends ImageView implements ImageRequest.Listener {
   private int placeholderImageResId;
   private URL loadedImageUrl;
   private URL pendingImageUrl;
+  private ImageRequest pendingRequest;
+  // Priority for loading images, which is lowered while this view is not on screen
+  private ImageRequest.Priority priority = ImageRequest.Priority.VISIBLE;
+  // Bitmap from the loader currently shown in this view, which is retained in the BitmapPool
+  private Bitmap displayedBitmap;
 
   private enum States {
     EMPTY,
@@ -128,7 +133,7 @@ public class WebImageView extends ImageView implements ImageRequest.Listener {
    * will be displayed on error.
    * @param placeholderImageResId Resource ID to set for placeholder image while image is loading.
    */
-  public void setImageUrl(URL imageUrl, BitmapFactory.Options options, int errorImageResId, int placeholderImageResId) {
+  public void setImageUrl(final URL imageUrl, final BitmapFactory.Options options, int errorImageResId, final int placeholderImageResId) {
     if(imageUrl == null) {
       return;
     }
@@ -139,22 +144,96 @@ public class WebImageView extends ImageView implements ImageRequest.Listener {
       return;
     }
 
-    currentState = States.LOADING;
     this.errorImageResId = errorImageResId;
+    if(getWidth() <= 0 && getHeight() <= 0 && (getTargetWidth() <= 0 || getTargetHeight() <= 0)) {
+      // This view has not been laid out yet. The target size is part of the memory cache key, so
+      // loading the image now would decode it at full size, under a key which this view won't ask
+      // for again once it knows its size. Runnables posted to a view are run after its next layout.
+      currentState = States.LOADING;
+      pendingImageUrl = imageUrl;
+      pendingRequest = null;
+      post(new Runnable() {
+        public void run() {
+          // Another image may have been set in the meantime
+          if(currentState == States.LOADING && pendingRequest == null && imageUrl.equals(pendingImageUrl)) {
+            loadImage(imageUrl, options, placeholderImageResId);
+          }
+        }
+      });
+      return;
+    }
+    loadImage(imageUrl, options, placeholderImageResId);
+  }
+
+  private void loadImage(URL imageUrl, BitmapFactory.Options options, int placeholderImageResId) {
+    // Views with a size which depends on the image still have no size, so decode the whole image
+    final ImageRequest request = new ImageRequest(getContext(), imageUrl, this, options, getTargetWidth(), getTargetHeight());
+    request.priority = priority;
+    // If the image is already in memory, then show it right away. This skips the placeholder image
+    // and all of the background threads, so recycled views in a list never flash an empty frame.
+    final Bitmap cachedBitmap = ImageLoader.getFromMemoryCache(request);
+    if(cachedBitmap != null) {
+      showBitmap(cachedBitmap);
+      BitmapPool.release(cachedBitmap);
+      currentState = States.LOADED;
+      loadedImageUrl = imageUrl;
+      pendingImageUrl = null;
+      pendingRequest = null;
+      if(this.listener != null) {
+        listener.onImageLoadStarted();
+        listener.onImageLoadComplete();
+      }
+      // A changed image is delivered to this view like any other image once it has been downloaded
+      ImageLoader.checkForUpdate(request);
+      return;
+    }
+
+    currentState = States.LOADING;
     if(this.placeholderImageResId > 0) {
       setImageResource(this.placeholderImageResId);
+      releaseDisplayedBitmap();
     }
     else if(this.placeholderImage != null) {
       setImageDrawable(this.placeholderImage);
+      releaseDisplayedBitmap();
     }
     else if(placeholderImageResId > 0) {
       setImageResource(placeholderImageResId);
+      releaseDisplayedBitmap();
     }
     if(this.listener != null) {
       listener.onImageLoadStarted();
     }
     pendingImageUrl = imageUrl;
-    ImageLoader.load(getContext(), imageUrl, this, options);
+    pendingRequest = request;
+    ImageLoader.load(request);
+  }
+
+  /**
+   * Get the width which images should be decoded for. Images larger than this view are downsampled
+   * while decoding, which saves both time and memory. If the size of the view is not yet known, for
+   * instance when it has just been inflated by a list adapter, then an exact size from the layout
+   * parameters is used, if there is one.
+   * @return Width in pixels, or 0 if unknown
+   */
+  protected int getTargetWidth() {
+    int width = getWidth();
+    if(width <= 0 && getLayoutParams() != null) {
+      width = getLayoutParams().width;
+    }
+    return width > 0 ? Math.max(width - getPaddingLeft() - getPaddingRight(), 0) : 0;
+  }
+
+  /**
+   * Get the height which images should be decoded for, see {@link #getTargetWidth()}.
+   * @return Height in pixels, or 0 if unknown
+   */
+  protected int getTargetHeight() {
+    int height = getHeight();
+    if(height <= 0 && getLayoutParams() != null) {
+      height = getLayoutParams().height;
+    }
+    return height > 0 ? Math.max(height - getPaddingTop() - getPaddingBottom(), 0) : 0;
   }
 
   /**
@@ -169,22 +248,33 @@ public class WebImageView extends ImageView implements ImageRequest.Listener {
    * @param response Request response
    */
   public void onBitmapLoaded(final RequestResponse response) {
-    if(response.originalRequest.imageUrl.equals(pendingImageUrl)) {
+    final URL imageUrl = response.originalRequest.imageUrl;
+    // The second case happens when the image shown in this view has changed on the server
+    if(imageUrl.equals(pendingImageUrl) || (pendingImageUrl == null && imageUrl.equals(loadedImageUrl))) {
+      // Keep the bitmap from being reused for another image until it has been shown
+      final Bitmap pendingBitmap = response.bitmapReference.get();
+      BitmapPool.retain(pendingBitmap);
       postToGuiThread(new Runnable() {
         public void run() {
           final Bitmap bitmap = response.bitmapReference.get();
           if(bitmap != null) {
-            setImageBitmap(bitmap);
+            showBitmap(bitmap);
+            BitmapPool.release(pendingBitmap);
             currentState = States.LOADED;
             loadedImageUrl = response.originalRequest.imageUrl;
             pendingImageUrl = null;
+            pendingRequest = null;
             if(listener != null) {
               listener.onImageLoadComplete();
             }
           }
           else {
             // The garbage collecter has cleaned up this bitmap by now (yes, that does happen), so re-issue the request
-            ImageLoader.load(getContext(), response.originalRequest.imageUrl, response.originalRequest.listener, response.originalRequest.loadOptions);
+            final ImageRequest originalRequest = response.originalRequest;
+            final ImageRequest reloadRequest = new ImageRequest(getContext(), originalRequest.imageUrl, originalRequest.listener,
+              originalRequest.loadOptions, originalRequest.targetWidth, originalRequest.targetHeight);
+            reloadRequest.priority = priority;
+            ImageLoader.load(reloadRequest);
             currentState = States.RELOADING;
           }
         }
@@ -194,8 +284,34 @@ public class WebImageView extends ImageView implements ImageRequest.Listener {
       if(listener != null) {
         listener.onImageLoadCancelled();
       }
-      currentState = States.CANCELLED;
+      // A request for an older URL may finish after a newer image was shown straight from the
+      // memory cache, in which case the view should stay loaded.
+      if(currentState != States.LOADED) {
+        currentState = States.CANCELLED;
+      }
+    }
+  }
+
+  /**
+   * This method is called with low resolution previews of the image while it is downloading, if
+   * progressive loading is enabled. The preview is shown until the real image has been loaded.
+   * @param response Request response with the preview bitmap
+   */
+  public void onBitmapPreview(final RequestResponse response) {
+    final URL imageUrl = response.originalRequest.imageUrl;
+    // Nothing else holds on to the preview, so keep it from being garbage collected on its way to the GUI thread
+    final Bitmap previewBitmap = response.bitmapReference.get();
+    if(previewBitmap == null) {
+      return;
     }
+    postToGuiThread(new Runnable() {
+      public void run() {
+        // The image itself may have beaten the preview to the GUI thread
+        if(currentState == States.LOADING && imageUrl.equals(pendingImageUrl)) {
+          showBitmap(previewBitmap);
+        }
+      }
+    });
   }
 
   /**
@@ -214,6 +330,7 @@ public class WebImageView extends ImageView implements ImageRequest.Listener {
         }
         if(errorImage != null) {
           setImageDrawable(errorImage);
+          releaseDisplayedBitmap();
         }
       }
     });
@@ -225,23 +342,70 @@ public class WebImageView extends ImageView implements ImageRequest.Listener {
   @Override
   protected void onWindowVisibilityChanged(int visibility) {
     super.onWindowVisibilityChanged(visibility);
+    setPriority(visibility == VISIBLE ? ImageRequest.Priority.VISIBLE : ImageRequest.Priority.NEAR_VISIBLE);
     if(visibility == VISIBLE && currentState == States.LOADING) {
       setImageUrl(pendingImageUrl);
     }
   }
 
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    setPriority(getWindowVisibility() == VISIBLE ? ImageRequest.Priority.VISIBLE : ImageRequest.Priority.NEAR_VISIBLE);
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    super.onDetachedFromWindow();
+    // Views which are detached from a list are likely to be reused for another row soon, and then
+    // their request is superseded anyway. Until then, let the views on screen go first.
+    setPriority(ImageRequest.Priority.NEAR_VISIBLE);
+  }
+
+  /**
+   * Change the priority of the image being loaded, and of images loaded by this view from now on.
+   * @param priority Priority
+   */
+  protected void setPriority(ImageRequest.Priority priority) {
+    if(this.priority == priority) {
+      return;
+    }
+
+    this.priority = priority;
+    if(pendingRequest != null) {
+      ImageLoader.updatePriority(pendingRequest, priority);
+    }
+  }
+
   /**
    * Called when the URL which the caller asked to load was cancelled. This can happen for a number
    * of reasons, including the activity being closed or scrolling rapidly in a ListView. For this
    * reason it is recommended not to do so much work in this method.
    */
   public void onBitmapLoadCancelled() {
-    currentState = States.CANCELLED;
+    // Requests for older URLs may be cancelled after a newer image was shown from the memory cache
+    if(currentState != States.LOADED) {
+      currentState = States.CANCELLED;
+    }
     if(listener != null) {
       listener.onImageLoadCancelled();
     }
   }
 
+  private void showBitmap(Bitmap bitmap) {
+    BitmapPool.retain(bitmap);
+    setImageBitmap(bitmap);
+    releaseDisplayedBitmap();
+    displayedBitmap = bitmap;
+  }
+
+  private void releaseDisplayedBitmap() {
+    if(displayedBitmap != null) {
+      BitmapPool.release(displayedBitmap);
+      displayedBitmap = null;
+    }
+  }
+
   /**
    * Post a message to the GUI thread. This should be used for updating the component from
    * background tasks.